@@ -1,10 +1,13 @@
 package it.piero.notiva.config;
 
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.awscore.retry.AwsRetryStrategy;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.textract.TextractAsyncClient;
 import software.amazon.awssdk.services.textract.TextractClient;
 
 @Configuration
@@ -21,4 +24,15 @@ public class AwsConfig {
                 .build();
     }
 
+    @Bean
+    @ConditionalOnProperty(prefix = "notiva.textract.async", name = "enabled", havingValue = "true", matchIfMissing = true)
+    public TextractAsyncClient textractAsyncClient() {
+        // retry e backoff (throttling, 5xx, errori di rete) li gestisce TextractAsyncDispatcher insieme al limite AIMD: quelli dell'SDK si sommerebbero
+        return TextractAsyncClient.builder()
+                .region(Region.of(textractRegion))
+                .credentialsProvider(DefaultCredentialsProvider.create())
+                .overrideConfiguration(o -> o.retryStrategy(AwsRetryStrategy.doNotRetry()))
+                .build();
+    }
+
 }
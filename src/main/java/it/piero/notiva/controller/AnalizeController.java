@@ -6,7 +6,9 @@ import it.piero.notiva.service.implementation.FastExtractionService;
 import it.piero.notiva.utils.CreateDocUnitUtils;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
 
 import java.util.List;
 
@@ -60,4 +62,44 @@ public class AnalizeController {
         DocUnitTextRequest docUnitRequest = createDocUnitUtils.createDocUnitRequestWithText(request, docUnits);
         return ResponseEntity.ok(fastExtractionService.extractWithText(docUnitRequest));
     }
+
+    @PostMapping(value = "/run-stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<ExtractionItem>> analyzeStream(@RequestBody RunAnalisisRequest request) throws Exception {
+        List<DocUnit> docUnits = textractService.analyze(request.getFiles());
+        DocUnitRequest docUnitRequest = createDocUnitUtils.createDocUnitRequest(request, docUnits);
+        return toEvents(fastExtractionService.extractStream(docUnitRequest));
+    }
+
+    @PostMapping(
+            value = "/run-test-stream",
+            consumes = MediaType.MULTIPART_FORM_DATA_VALUE,
+            produces = MediaType.TEXT_EVENT_STREAM_VALUE
+    )
+    public Flux<ServerSentEvent<ExtractionItem>> analyzeTestStream(@ModelAttribute RunAnalisisRequest request) throws Exception {
+        List<DocUnit> docUnits = textractService.analyze(request.getFiles());
+        DocUnitRequest docUnitRequest = createDocUnitUtils.createDocUnitRequest(request, docUnits);
+        return toEvents(fastExtractionService.extractStream(docUnitRequest));
+    }
+
+    @PostMapping(value = "/run-text-stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<ExtractionItem>> analyzeTextStream(@RequestBody RunAnalisisRequest request) throws Exception {
+        String docUnits = textractService.analyzeText(request.getFiles());
+        DocUnitTextRequest docUnitRequest = createDocUnitUtils.createDocUnitRequestWithText(request, docUnits);
+        return toEvents(fastExtractionService.extractWithTextStream(docUnitRequest));
+    }
+
+    @PostMapping(
+            value = "/run-test-text-stream",
+            consumes = MediaType.MULTIPART_FORM_DATA_VALUE,
+            produces = MediaType.TEXT_EVENT_STREAM_VALUE
+    )
+    public Flux<ServerSentEvent<ExtractionItem>> analyzeTestTextStream(@ModelAttribute RunAnalisisRequest request) throws Exception {
+        String docUnits = textractService.analyzeText(request.getFiles());
+        DocUnitTextRequest docUnitRequest = createDocUnitUtils.createDocUnitRequestWithText(request, docUnits);
+        return toEvents(fastExtractionService.extractWithTextStream(docUnitRequest));
+    }
+
+    private static Flux<ServerSentEvent<ExtractionItem>> toEvents(Flux<ExtractionItem> items) {
+        return items.map(item -> ServerSentEvent.builder(item).event("extraction").build());
+    }
 }
@@ -1,10 +1,18 @@
 package it.piero.notiva.controller;
 
 import it.piero.notiva.model.DocUnitRequest;
+import it.piero.notiva.model.ExtractionItem;
 import it.piero.notiva.model.ExtractionResult;
 import it.piero.notiva.service.implementation.FastExtractionService;
+import it.piero.notiva.service.implementation.ModelCascade;
+import it.piero.notiva.utils.TieredCache;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
+
+import java.util.List;
 
 @RestController
 @RequestMapping("api/llm")
@@ -22,4 +30,22 @@ public class LlmExtractionController {
     public ResponseEntity<ExtractionResult> analyze(@RequestBody DocUnitRequest request) {
         return ResponseEntity.ok(fastExtractionService.extract(request));
     }
+
+    @PostMapping(value = "extract-stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<ExtractionItem>> extractStream(@RequestBody DocUnitRequest request) {
+        return fastExtractionService.extractStream(request)
+                .map(item -> ServerSentEvent.builder(item).event("extraction").build());
+    }
+
+    @GetMapping("cache/stats")
+    public ResponseEntity<TieredCache.Stats> cacheStats() {
+        TieredCache.Stats stats = fastExtractionService.cacheStats();
+        return stats == null ? ResponseEntity.noContent().build() : ResponseEntity.ok(stats);
+    }
+
+    @GetMapping("cascade/stats")
+    public ResponseEntity<List<ModelCascade.TierStats>> cascadeStats() {
+        List<ModelCascade.TierStats> stats = fastExtractionService.cascadeStats();
+        return stats == null ? ResponseEntity.noContent().build() : ResponseEntity.ok(stats);
+    }
 }
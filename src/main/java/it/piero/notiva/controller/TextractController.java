@@ -1,7 +1,11 @@
 package it.piero.notiva.controller;
 
+import it.piero.notiva.model.DocAnalysis;
 import it.piero.notiva.model.DocUnit;
 import it.piero.notiva.service.definition.TextractService;
+import it.piero.notiva.utils.NdjsonWriter;
+import it.piero.notiva.utils.TieredCache;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
@@ -24,8 +28,31 @@ public class TextractController {
         return ResponseEntity.ok(textractService.analyze(files));
     }
 
+    @PostMapping(value = "analyze-ndjson", produces = NdjsonWriter.MEDIA_TYPE)
+    public void analyzeNdjson(@RequestBody List<MultipartFile> files, HttpServletResponse response) throws Exception {
+        response.setContentType(NdjsonWriter.MEDIA_TYPE);
+        response.setCharacterEncoding("UTF-8");
+        try (NdjsonWriter writer = new NdjsonWriter(response.getOutputStream())) {
+            textractService.analyze(files, writer::writeAll);
+        }
+    }
+
     @PostMapping("analyze-text")
     public ResponseEntity<String> analyzeText(@RequestBody List<MultipartFile> files) throws Exception {
         return ResponseEntity.ok(textractService.analyzeText(files));
     }
+
+    // una sola elaborazione per pagina: unità strutturate e/o testo impaginato dallo stesso upload
+    @PostMapping("analyze-all")
+    public ResponseEntity<DocAnalysis> analyzeAll(@RequestBody List<MultipartFile> files,
+                                                  @RequestParam(defaultValue = "true") boolean units,
+                                                  @RequestParam(defaultValue = "true") boolean text) throws Exception {
+        return ResponseEntity.ok(textractService.analyzeAll(files, units, text));
+    }
+
+    @GetMapping("cache/stats")
+    public ResponseEntity<TieredCache.Stats> cacheStats() {
+        TieredCache.Stats stats = textractService.cacheStats();
+        return stats == null ? ResponseEntity.noContent().build() : ResponseEntity.ok(stats);
+    }
 }
@@ -0,0 +1,16 @@
+package it.piero.notiva.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.*;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class DocAnalysis {
+    private List<DocUnit> docUnits;
+    private String text;
+}
@@ -1,5 +1,6 @@
 package it.piero.notiva.model;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.*;
 
 import java.util.List;
@@ -13,5 +14,8 @@ public class DocUnitTextRequest {
     private String records;
     private List<String> fields;
     private String notes;
+    // profilo di output ("value-only"): letto dalla richiesta, mai inviato al modello
+    @JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
+    private String outputProfile;
 
 }
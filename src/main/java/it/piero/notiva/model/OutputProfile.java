@@ -0,0 +1,13 @@
+package it.piero.notiva.model;
+
+import java.util.Locale;
+
+public enum OutputProfile {
+    FULL, VALUE_ONLY;
+
+    // "value-only", "value_only", "VALUE_ONLY"; assente o sconosciuto = FULL
+    public static OutputProfile of(String s) {
+        if (s == null || s.isBlank()) return FULL;
+        return "VALUE_ONLY".equals(s.trim().toUpperCase(Locale.ROOT).replace('-', '_')) ? VALUE_ONLY : FULL;
+    }
+}
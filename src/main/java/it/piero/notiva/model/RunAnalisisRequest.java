@@ -10,6 +10,7 @@ public class RunAnalisisRequest {
 
     private List<String> fields;
     private String notes;
+    private String outputProfile;
     private List<MultipartFile> files;
 
 }
@@ -1,14 +1,20 @@
 package it.piero.notiva.service.definition;
 
+import it.piero.notiva.model.DocAnalysis;
 import it.piero.notiva.model.DocUnit;
+import it.piero.notiva.utils.TieredCache;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.function.Consumer;
 
 public interface TextractService {
 
     List<DocUnit> analyze(List<MultipartFile> file) throws IOException;
+    void analyze(List<MultipartFile> files, Consumer<List<DocUnit>> pageSink) throws IOException;
     String analyzeText(List<MultipartFile> files) throws Exception;
+    DocAnalysis analyzeAll(List<MultipartFile> files, boolean withUnits, boolean withText) throws IOException;
+    TieredCache.Stats cacheStats();
 
 }
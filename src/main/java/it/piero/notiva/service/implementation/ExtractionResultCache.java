@@ -0,0 +1,102 @@
+package it.piero.notiva.service.implementation;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.piero.notiva.model.ExtractionResult;
+import it.piero.notiva.utils.TieredCache;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Cache dei risultati LLM: con temperature 0 e seed fisso, stesso modello + stesso system prompt + stesso input
+// danno la stessa estrazione. Si conserva il risultato completo, confidence da logprobs comprese.
+@Component
+@ConditionalOnProperty(prefix = "notiva.llm.cache", name = "enabled", havingValue = "true", matchIfMissing = true)
+public class ExtractionResultCache {
+
+    public static final String BYPASS_HEADER = "X-Notiva-Cache";
+
+    // da incrementare se cambia il calcolo delle confidence o il formato su disco
+    private static final String FORMAT_VERSION = "1";
+
+    private final TieredCache<ExtractionResult> cache;
+
+    public ExtractionResultCache(@Value("${notiva.llm.cache.memoryEntries:512}") int memoryEntries,
+                                 @Value("${notiva.llm.cache.ttl:24h}") Duration ttl,
+                                 @Value("${notiva.llm.cache.dir:}") String dir,
+                                 @Value("${notiva.llm.cache.maxDiskBytes:268435456}") long maxDiskBytes) {
+        Path diskDir = dir == null || dir.isBlank() ? null : Path.of(dir);
+        this.cache = new TieredCache<>("llm", memoryEntries, diskDir, maxDiskBytes, ttl, new ResultCodec());
+    }
+
+    // il system prompt contiene già versione del prompt, formato dei record e note; il payload record e campi
+    public String key(String model, String systemPrompt, byte[] userPayload) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update((FORMAT_VERSION + "|" + model + "|").getBytes(StandardCharsets.UTF_8));
+            sha.update(systemPrompt.getBytes(StandardCharsets.UTF_8));
+            sha.update((byte) 0);
+            sha.update(userPayload);
+            return HexFormat.of().formatHex(sha.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 non disponibile", e);
+        }
+    }
+
+    public ExtractionResult get(String key) {
+        return cache.get(key);
+    }
+
+    public void put(String key, ExtractionResult result) {
+        cache.put(key, result);
+    }
+
+    public TieredCache.Stats stats() {
+        return cache.stats();
+    }
+
+    // "X-Notiva-Cache: bypass" sulla richiesta HTTP corrente: la richiesta va al modello senza leggere né scrivere la cache
+    public static boolean bypassRequested() {
+        RequestAttributes attrs = RequestContextHolder.getRequestAttributes();
+        if (!(attrs instanceof ServletRequestAttributes servlet)) return false;
+        String value = servlet.getRequest().getHeader(BYPASS_HEADER);
+        return value != null && (value.equalsIgnoreCase("bypass") || value.equalsIgnoreCase("no-cache"));
+    }
+
+    static final class ResultCodec implements TieredCache.Codec<ExtractionResult> {
+
+        private static final ObjectMapper MAPPER = new ObjectMapper();
+
+        @Override
+        public byte[] encode(ExtractionResult value) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (OutputStream gz = new GZIPOutputStream(bytes)) {
+                MAPPER.writeValue(gz, value);
+            }
+            return bytes.toByteArray();
+        }
+
+        @Override
+        public ExtractionResult decode(byte[] bytes) throws IOException {
+            try (InputStream gz = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+                return MAPPER.readValue(gz, ExtractionResult.class);
+            }
+        }
+    }
+}
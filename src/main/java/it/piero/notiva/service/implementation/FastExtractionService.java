@@ -3,39 +3,189 @@ package it.piero.notiva.service.implementation;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import it.piero.notiva.model.DocUnitRequest;
 import it.piero.notiva.model.DocUnitTextRequest;
+import it.piero.notiva.model.Evidence;
+import it.piero.notiva.model.ExtractionItem;
 import it.piero.notiva.model.ExtractionResult;
+import it.piero.notiva.model.DocUnit;
+import it.piero.notiva.model.OutputProfile;
+import it.piero.notiva.utils.CompactRecordEncoder;
+import it.piero.notiva.utils.EvidenceLocator;
+import it.piero.notiva.utils.ExtractionMerger;
+import it.piero.notiva.utils.ExtractionStreamParser;
+import it.piero.notiva.utils.LogProbsJsonAligner;
 import it.piero.notiva.utils.LogProbsUtils;
+import it.piero.notiva.utils.RecordChunker;
+import it.piero.notiva.utils.TieredCache;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.client.ChatClient;
 import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.openai.OpenAiChatOptions;
 import org.springframework.ai.openai.api.OpenAiApi.LogProbs;
+import org.springframework.ai.openai.api.ResponseFormat;
+import org.springframework.ai.openai.api.OpenAiApi.LogProbs.Content;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
-
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+@Slf4j
 @Service
 public class FastExtractionService {
 
     private final ChatClient chatClient;
     private final ObjectMapper mapper;
     private final LogProbsUtils logProbsUtils;
+    private final RecordChunker chunker;
+    private final RecordRelevanceFilter relevanceFilter;
+    private final ExtractionResultCache resultCache;
+    private final RuleBasedExtractor ruleExtractor;
+    private final ModelCascade modelCascade;
+
+    @Value("${spring.ai.openai.chat.options.model:}")
+    private String model;
+
+    @Value("${notiva.llm.structuredOutput.enabled:false}")
+    private boolean structuredOutput;
+
+    @Value("${notiva.llm.structuredOutput.parseRetries:1}")
+    private int parseRetries;
+
+    @Value("${notiva.llm.valueOnly.ambiguousBelow:0.5}")
+    private double ambiguousBelow;
+
+    @Value("${notiva.llm.compactRecords:true}")
+    private boolean compactRecords;
+
+    @Value("${notiva.llm.chunking.enabled:false}")
+    private boolean chunkingEnabled;
+
+    @Value("${notiva.llm.chunking.tokenBudget:12000}")
+    private int tokenBudget;
 
-    public FastExtractionService(ChatClient.Builder chatClient, ObjectMapper mapper, LogProbsUtils logProbsUtils) {
+    @Value("${notiva.llm.chunking.maxParallel:4}")
+    private int maxParallel;
+
+    @Value("${notiva.llm.fieldGroups.enabled:false}")
+    private boolean fieldGroupsEnabled;
+
+    @Value("${notiva.llm.fieldGroups.size:8}")
+    private int fieldGroupSize;
+
+    @Value("${notiva.llm.fieldGroups.maxParallel:8}")
+    private int fieldGroupsMaxParallel;
+
+    public FastExtractionService(ChatClient.Builder chatClient, ObjectMapper mapper, LogProbsUtils logProbsUtils,
+                                 RecordChunker chunker, ObjectProvider<RecordRelevanceFilter> relevanceFilter,
+                                 ObjectProvider<ExtractionResultCache> resultCache,
+                                 ObjectProvider<RuleBasedExtractor> ruleExtractor,
+                                 ObjectProvider<ModelCascade> modelCascade) {
         this.chatClient = chatClient.build();
         this.mapper = mapper;
         this.logProbsUtils = logProbsUtils;
+        this.chunker = chunker;
+        this.relevanceFilter = relevanceFilter.getIfAvailable();
+        this.resultCache = resultCache.getIfAvailable();
+        this.ruleExtractor = ruleExtractor.getIfAvailable();
+        this.modelCascade = modelCascade.getIfAvailable();
     }
 
-    private static final String SYSTEM = """
-        Sei un estrattore deterministico.
-
+    private static final String INPUT_JSON = """
         Riceverai dall'utente UN JSON con struttura:
         {
           "records": [ ... ],   // blocchi TEXT/TABLE normalizzati (OCR)
           "fields":  [ ... ],   // nomi dei campi da estrarre (stringhe libere)
           "notes":   "<opzionale>"
-        }
+        }""";
+
+    private static final String INPUT_COMPACT = """
+        Riceverai dall'utente un testo in formato compatto, una riga per elemento:
+        FIELDS                 // seguono i nomi dei campi da estrarre, uno per riga preceduto da "- "
+        NOTES                  // opzionale, la riga successiva contiene le note
+        RECORDS                // seguono i record (blocchi TEXT/TABLE normalizzati da OCR)
+        @ <file>               // i record successivi appartengono a questo file
+        # <pagina>             // i record successivi appartengono a questa pagina
+        T <l>,<t>,<w>,<h> [SUBTYPE] [HEADER|FOOTER]: <testo>     // record TEXT
+        TAB <l>,<t>,<w>,<h> [HEADER|FOOTER]:                      // record TABLE, seguono le sue righe
+        | <cella> | <cella> | ...                                  // una riga della tabella; cella vuota = NULLA
+        - Coordinate normalizzate 0–1 (sinistra, alto, larghezza, altezza). Regione assente = BODY.
+        - Escape nei testi: "\\n" = a capo, "\\\\" = barra inversa, "\\|" dentro una cella = carattere |.
+        - "records" nelle regole seguenti indica le righe T/TAB di RECORDS.""";
+
+    // schema di ExtractionResult per lo structured output (strict: tutte le chiavi obbligatorie, niente extra)
+    private static final String EXTRACTION_SCHEMA = """
+        {
+          "type": "object",
+          "additionalProperties": false,
+          "required": ["extractions"],
+          "properties": {
+            "extractions": {
+              "type": "array",
+              "items": {
+                "type": "object",
+                "additionalProperties": false,
+                "required": ["name", "value", "evidence", "status", "confidence", "alternatives"],
+                "properties": {
+                  "name": {"type": "string"},
+                  "value": {"type": "string"},
+                  "evidence": {
+                    "type": "object",
+                    "additionalProperties": false,
+                    "required": ["snippet"],
+                    "properties": {"snippet": {"type": "string"}}
+                  },
+                  "status": {"type": "string", "enum": ["OK", "NOT_FOUND", "AMBIGUO"]},
+                  "confidence": {"type": "number"},
+                  "alternatives": {"type": "array", "items": {"type": "string"}}
+                }
+              }
+            }
+          }
+        }""";
+
+    // profilo value-only: il modello genera solo nome e valore, il resto si ricava lato server
+    private static final String VALUE_ONLY_SCHEMA = """
+        {
+          "type": "object",
+          "additionalProperties": false,
+          "required": ["extractions"],
+          "properties": {
+            "extractions": {
+              "type": "array",
+              "items": {
+                "type": "object",
+                "additionalProperties": false,
+                "required": ["name", "value"],
+                "properties": {
+                  "name": {"type": "string"},
+                  "value": {"type": "string"}
+                }
+              }
+            }
+          }
+        }""";
+
+    private static final String RETRY_HINT = """
+
+        ATTENZIONE: la risposta precedente non era JSON valido. Rispondi SOLO con l'oggetto JSON dello schema,
+        senza testo prima o dopo e senza blocchi di codice.""";
+
+    private static final String SYSTEM = """
+        Sei un estrattore deterministico.
+
+        [formato]
 
         PRINCIPI
         - Usa SOLO ciò che c’è in "records". Non inventare.
@@ -132,218 +282,477 @@ public class FastExtractionService {
         [istruzioni]
         """;
 
-    public ExtractionResult extract(DocUnitRequest request) {
-
-
-        Resource userResource = toResource(request);
-
-        String systemPrompt = SYSTEM.replace("[istruzioni]", request.getNotes());
+    // stesso prompt senza ambiguità, calibrazione ed evidence: status e confidence dai logprobs, snippet cercato nei record
+    private static final String SYSTEM_VALUE_ONLY = section(section(SYSTEM
+                    .replace("SELEZIONE, AMBIGUITÀ, ALTERNATIVE E CONFIDENCE", "SELEZIONE"),
+            "- Se c’è un chiaro vincitore", "VALIDAZIONI E NORMALIZZAZIONI", """
+                    - Scegli sempre il candidato più probabile come "value", senza alternative.
+                    - Se nessun candidato valido ⇒ value="NOT_FOUND".
 
-        ChatResponse call = chatClient
-                .prompt()
-                .system(systemPrompt)
-                .user(userResource)
-                .call()
-                .chatResponse();
+                    """),
+            "EVIDENCE", "***LISTA ISTRUZIONI", """
+                    OUTPUT (SOLO JSON, schema esatto, nessun'altra chiave):
+                    {
+                      "extractions":[
+                        {"name":"<campo_richiesto>", "value":"<string|NOT_FOUND>"}
+                      ]
+                    }
 
-        String output = call.getResult().getOutput().getText();
+                    """);
 
+    public ExtractionResult extract(DocUnitRequest request) {
         ExtractionResult result;
-        try {
-            result = mapper.readValue(output, ExtractionResult.class);
-        } catch (Exception e) {
-            throw new RuntimeException("Parse JSON fallito. Output:\n" + output, e);
+        if (request.getFields() == null || (ruleExtractor == null && modelCascade == null)) {
+            result = extractWithModel(request, null);
+        } else {
+            Map<String, ExtractionItem> resolved = ruleExtractor == null
+                    ? Map.of()
+                    : ruleExtractor.extract(request.getRecords(), request.getFields());
+            List<String> pending = pending(request.getFields(), resolved);
+            ExtractionResult fromModel = pending.isEmpty()
+                    ? null
+                    : cascade(pending, (fields, tierModel) -> extractWithModel(withFields(request, fields), tierModel));
+            result = withResolved(request.getFields(), resolved, fromModel);
         }
+        // evidence sui record completi, non su quelli filtrati o divisi a blocchi
+        return valueOnly(request.getOutputProfile())
+                ? withEvidence(result, value -> EvidenceLocator.locate(request.getRecords(), value))
+                : result;
+    }
 
-        LogProbs lp = LogProbsUtils.asLogProbs(call.getResult().getMetadata().get("logprobs"), mapper);
-        if (lp == null || result.getExtractions() == null || result.getExtractions().isEmpty()) {
-            return result;
+    // modelOverride null = modello configurato in spring.ai
+    private ExtractionResult extractWithModel(DocUnitRequest request, String modelOverride) {
+        boolean useCache = useCache();
+        List<String> fields = request.getFields();
+        if (!fieldGroupsEnabled || fields == null || fields.size() <= fieldGroupSize) {
+            return extractRecords(prefilter(request), useCache, modelOverride);
         }
 
-        List<LogProbsUtils.Range> windows = LogProbsUtils.jsonStringValueWindows(lp, "value");
+        // un completamento per gruppo di campi sugli stessi record: la latenza è quella del gruppo più lento
+        List<DocUnitRequest> groups = new ArrayList<>();
+        for (int from = 0; from < fields.size(); from += fieldGroupSize) {
+            groups.add(withFields(request, fields.subList(from, Math.min(fields.size(), from + fieldGroupSize))));
+        }
+        log.info("Estrazione per gruppi di campi: {} campi in {} gruppi", fields.size(), groups.size());
+        List<ExtractionResult> partials = inParallel(groups, fieldGroupsMaxParallel,
+                group -> extractRecords(prefilter(group), useCache, modelOverride));
+        return ExtractionMerger.merge(fields, partials);
+    }
 
-        var toks = LogProbsUtils.content(lp);
-        var full = LogProbsUtils.text(lp);
+    private ExtractionResult extractRecords(DocUnitRequest request, boolean useCache, String modelOverride) {
+        List<DocUnit> records = request.getRecords();
+        if (!chunkingEnabled || records == null || records.isEmpty()) {
+            return extractSingle(request, useCache, modelOverride);
+        }
 
-        int n = toks.size();
-        int[] start = new int[n];
-        int[] end   = new int[n];
-        int pos = 0;
-        for (int i = 0; i < n; i++) {
-            start[i] = pos;
-            pos += toks.get(i).token().length();
-            end[i] = pos;
+        int tokens = chunker.estimateTokens(records);
+        if (tokens <= tokenBudget) {
+            return extractSingle(request, useCache, modelOverride);
         }
 
-        int fromChar = 0;
+        List<List<DocUnit>> chunks = chunker.chunk(records, tokenBudget);
+        log.info("Estrazione a blocchi: {} record, ~{} token, {} blocchi (budget {})",
+                records.size(), tokens, chunks.size(), tokenBudget);
+        List<DocUnitRequest> parts = chunks.stream()
+                .map(chunk -> withRecords(request, chunk))
+                .toList();
+        return ExtractionMerger.merge(request.getFields(), inParallel(parts, maxParallel,
+                part -> extractSingle(part, useCache, modelOverride)));
+    }
 
-        for (var item : result.getExtractions()) {
-            String v = item.getValue();
+    private DocUnitRequest prefilter(DocUnitRequest request) {
+        if (relevanceFilter == null) return request;
+        List<DocUnit> kept = relevanceFilter.filter(request.getRecords(), request.getFields());
+        return kept == request.getRecords() ? request : withRecords(request, kept);
+    }
 
-            if (v == null || "NOT_FOUND".equals(v)) {
-                item.setConfidence(0.0);
-                continue;
-            }
+    private static DocUnitRequest withRecords(DocUnitRequest request, List<DocUnit> records) {
+        return DocUnitRequest.builder()
+                .records(records)
+                .fields(request.getFields())
+                .notes(request.getNotes())
+                .outputProfile(request.getOutputProfile())
+                .build();
+    }
 
-            String pattern = "\"value\"\\s*:\\s*\"" + java.util.regex.Pattern.quote(v) + "\"";
-            java.util.regex.Matcher m = java.util.regex.Pattern.compile(pattern, java.util.regex.Pattern.DOTALL)
-                    .matcher(full);
+    private static DocUnitRequest withFields(DocUnitRequest request, List<String> fields) {
+        return DocUnitRequest.builder()
+                .records(request.getRecords())
+                .fields(fields)
+                .notes(request.getNotes())
+                .outputProfile(request.getOutputProfile())
+                .build();
+    }
 
-            if (!m.find(fromChar)) {
-                continue;
+    // map concorrente su virtual thread, al massimo maxParallel in volo; i risultati restano nell'ordine di input
+    private static <T, R> List<R> inParallel(List<T> inputs, int maxParallel, Function<T, R> task) {
+        if (inputs.size() == 1) return List.of(task.apply(inputs.get(0)));
+
+        Semaphore permits = new Semaphore(Math.max(1, maxParallel));
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<CompletableFuture<R>> futures = new ArrayList<>(inputs.size());
+            for (T input : inputs) {
+                futures.add(CompletableFuture.supplyAsync(() -> {
+                    permits.acquireUninterruptibly();
+                    try {
+                        return task.apply(input);
+                    } finally {
+                        permits.release();
+                    }
+                }, executor));
             }
+            return futures.stream().map(CompletableFuture::join).toList();
+        }
+    }
 
-            java.util.regex.Matcher m2 = java.util.regex.Pattern
-                    .compile("\"value\"\\s*:\\s*\"(" + java.util.regex.Pattern.quote(v) + ")\"",
-                            java.util.regex.Pattern.DOTALL)
-                    .matcher(full);
+    private ExtractionResult extractSingle(DocUnitRequest request, boolean useCache, String modelOverride) {
+        boolean valueOnly = valueOnly(request.getOutputProfile());
+        return complete(systemPrompt(compactRecords ? INPUT_COMPACT : INPUT_JSON, request.getNotes(), valueOnly),
+                userResource(request), useCache, modelOverride, valueOnly);
+    }
 
-            if (!m2.find(fromChar)) {
-                continue;
+    public ExtractionResult extractWithText(DocUnitTextRequest request) {
+        boolean useCache = useCache();
+        boolean valueOnly = valueOnly(request.getOutputProfile());
+        String systemPrompt = systemPrompt(INPUT_JSON, request.getNotes(), valueOnly);
+        ExtractionResult result;
+        if (request.getFields() == null || (ruleExtractor == null && modelCascade == null)) {
+            result = complete(systemPrompt, toResource(request), useCache, null, valueOnly);
+        } else {
+            Map<String, ExtractionItem> resolved = ruleExtractor == null
+                    ? Map.of()
+                    : ruleExtractor.extract(request.getRecords(), request.getFields());
+            List<String> pending = pending(request.getFields(), resolved);
+            ExtractionResult fromModel = null;
+            if (!pending.isEmpty()) {
+                fromModel = cascade(pending, (fields, tierModel) -> {
+                    DocUnitTextRequest rest = DocUnitTextRequest.builder()
+                            .records(request.getRecords())
+                            .fields(fields)
+                            .notes(request.getNotes())
+                            .outputProfile(request.getOutputProfile())
+                            .build();
+                    return complete(systemPrompt, toResource(rest), useCache, tierModel, valueOnly);
+                });
             }
+            result = withResolved(request.getFields(), resolved, fromModel);
+        }
+        return valueOnly ? withEvidence(result, value -> EvidenceLocator.locate(request.getRecords(), value)) : result;
+    }
 
-            int valStartChar = m2.start(1);
-            int valEndChar   = m2.end(1);
-            fromChar = valEndChar;
+    private ExtractionResult cascade(List<String> fields, BiFunction<List<String>, String, ExtractionResult> ask) {
+        return modelCascade == null ? ask.apply(fields, null) : modelCascade.run(fields, ask);
+    }
 
-            int sTok = charToTokenIndex(start, end, valStartChar);
-            int eTok = charToTokenIndexEnd(start, end, valEndChar);
+    public List<ModelCascade.TierStats> cascadeStats() {
+        return modelCascade == null ? null : modelCascade.stats();
+    }
 
-            if (sTok >= 0 && eTok > sTok) {
-                var range = new LogProbsUtils.Range(sTok, eTok);
+    private static List<String> pending(List<String> fields, Map<String, ExtractionItem> resolved) {
+        if (!resolved.isEmpty()) log.info("Pre-estrazione a regole: {} campi su {} senza LLM", resolved.size(), fields.size());
+        return fields.stream().filter(f -> !resolved.containsKey(f)).toList();
+    }
 
-                double confStrict = LogProbsUtils.windowConfidenceStrictTuned(
-                        toks, range,
-                        1.8,
-                        2,
-                        3,
-                        0.6
-                );
+    // campi risolti dalle regole e risposta del modello per gli altri, nell'ordine dei campi richiesti
+    private static ExtractionResult withResolved(List<String> fields, Map<String, ExtractionItem> resolved,
+                                                 ExtractionResult fromModel) {
+        List<ExtractionResult> partials = new ArrayList<>(2);
+        partials.add(ExtractionResult.builder().extractions(new ArrayList<>(resolved.values())).build());
+        if (fromModel != null) partials.add(fromModel);
+        return ExtractionMerger.merge(fields, partials);
+    }
 
-                if (!Double.isNaN(confStrict)) {
-                    item.setConfidence(confStrict);
-                }
+    // stesso prompt e stesso input (temperature 0, seed fisso) = stessa risposta: si chiede al modello una volta sola
+    private ExtractionResult complete(String systemPrompt, ByteArrayResource userResource, boolean useCache,
+                                      String modelOverride, boolean valueOnly) {
+        if (!useCache) return call(systemPrompt, userResource, modelOverride, valueOnly);
+
+        String key = resultCache.key(modelOverride == null ? model : modelOverride, systemPrompt, userResource.getByteArray());
+        ExtractionResult hit = resultCache.get(key);
+        if (hit != null) {
+            log.debug("Estrazione servita dalla cache ({})", key);
+            return hit;
+        }
+        ExtractionResult result = call(systemPrompt, userResource, modelOverride, valueOnly);
+        resultCache.put(key, result);
+        return result;
+    }
+
+    // solo il passo LLM si ripete: OCR e record restano quelli già calcolati
+    private ExtractionResult call(String systemPrompt, Resource userResource, String modelOverride, boolean valueOnly) {
+        ChatResponse call;
+        ExtractionResult result;
+        for (int attempt = 0; ; attempt++) {
+            ChatClient.ChatClientRequestSpec prompt = chatClient
+                    .prompt()
+                    .system(attempt == 0 ? systemPrompt : systemPrompt + RETRY_HINT)
+                    .user(userResource);
+            OpenAiChatOptions options = options(modelOverride, valueOnly);
+            if (options != null) prompt = prompt.options(options);
+            call = prompt.call().chatResponse();
+
+            String output = call.getResult().getOutput().getText();
+            result = parse(output);
+            if (result != null) break;
+            if (attempt >= parseRetries) {
+                throw new RuntimeException("Parse JSON fallito. Output:\n" + output);
             }
+            log.warn("Output del modello non è JSON valido, nuovo tentativo {}/{}", attempt + 1, parseRetries);
         }
 
+        List<ExtractionItem> items = result.getExtractions();
+        if (items == null || items.isEmpty()) return result;
 
+        LogProbs lp = LogProbsUtils.asLogProbs(call.getResult().getMetadata().get("logprobs"), mapper);
+        if (lp != null) {
+            List<Content> toks = LogProbsUtils.content(lp);
+            List<LogProbsUtils.Range> values = LogProbsJsonAligner.valueRanges(toks, "extractions", "value");
+            for (int i = 0; i < items.size(); i++) {
+                applyConfidence(items.get(i), toks, i < values.size() ? values.get(i) : null);
+            }
+        }
+        if (valueOnly) items.forEach(this::fillValueOnly);
         return result;
     }
 
-    public ExtractionResult extractWithText(DocUnitTextRequest request) {
+    // streaming: ogni ExtractionItem esce appena il suo oggetto JSON si chiude, con la confidence dai logprobs
+    public Flux<ExtractionItem> extractStream(DocUnitRequest request) {
+        boolean valueOnly = valueOnly(request.getOutputProfile());
+        List<DocUnit> records = request.getRecords();
+        DocUnitRequest filtered = prefilter(request);
+        Flux<ExtractionItem> items = stream(userResource(filtered),
+                systemPrompt(compactRecords ? INPUT_COMPACT : INPUT_JSON, filtered.getNotes(), valueOnly), useCache(),
+                valueOnly);
+        return valueOnly ? items.map(item -> withEvidence(item, value -> EvidenceLocator.locate(records, value))) : items;
+    }
+
+    public Flux<ExtractionItem> extractWithTextStream(DocUnitTextRequest request) {
+        boolean valueOnly = valueOnly(request.getOutputProfile());
+        Flux<ExtractionItem> items = stream(toResource(request), systemPrompt(INPUT_JSON, request.getNotes(), valueOnly),
+                useCache(), valueOnly);
+        return valueOnly
+                ? items.map(item -> withEvidence(item, value -> EvidenceLocator.locate(request.getRecords(), value)))
+                : items;
+    }
 
+    private Flux<ExtractionItem> stream(ByteArrayResource userResource, String systemPrompt, boolean useCache,
+                                        boolean valueOnly) {
+        String key = useCache ? resultCache.key(model, systemPrompt, userResource.getByteArray()) : null;
 
-        Resource userResource = toResource(request);
+        return Flux.defer(() -> {
+            if (key != null) {
+                ExtractionResult hit = resultCache.get(key);
+                if (hit != null && hit.getExtractions() != null) return Flux.fromIterable(hit.getExtractions());
+            }
 
-        String systemPrompt = SYSTEM.replace("[istruzioni]", request.getNotes());
+            StreamState state = new StreamState(valueOnly);
+            List<ExtractionItem> emitted = new ArrayList<>();
+            ChatClient.ChatClientRequestSpec prompt = chatClient
+                    .prompt()
+                    .system(systemPrompt)
+                    .user(userResource);
+            OpenAiChatOptions options = options(null, valueOnly);
+            if (options != null) prompt = prompt.options(options);
+            Flux<ExtractionItem> items = prompt
+                    .stream()
+                    .chatResponse()
+                    .concatMapIterable(state::onChunk)
+                    .concatWith(Flux.defer(() -> Flux.fromIterable(state.finish())));
+            if (key == null) return items;
+
+            // in cache solo a stream completo: un output interrotto non deve diventare la risposta di domani
+            return items
+                    .doOnNext(emitted::add)
+                    .doOnComplete(() -> resultCache.put(key, ExtractionResult.builder().extractions(emitted).build()));
+        });
+    }
 
-        ChatResponse call = chatClient
-                .prompt()
-                .system(systemPrompt)
-                .user(userResource)
-                .call()
-                .chatResponse();
+    private final class StreamState {
 
-        String output = call.getResult().getOutput().getText();
+        private final ExtractionStreamParser parser = new ExtractionStreamParser("extractions", "value");
+        private final LogProbsJsonAligner aligner = new LogProbsJsonAligner();
+        private final boolean valueOnly;
 
-        ExtractionResult result;
-        try {
-            result = mapper.readValue(output, ExtractionResult.class);
-        } catch (Exception e) {
-            throw new RuntimeException("Parse JSON fallito. Output:\n" + output, e);
+        StreamState(boolean valueOnly) {
+            this.valueOnly = valueOnly;
         }
 
-        LogProbs lp = LogProbsUtils.asLogProbs(call.getResult().getMetadata().get("logprobs"), mapper);
-        if (lp == null || result.getExtractions() == null || result.getExtractions().isEmpty()) {
-            return result;
-        }
+        List<ExtractionItem> onChunk(ChatResponse chunk) {
+            if (chunk == null || chunk.getResult() == null || chunk.getResult().getOutput() == null) return List.of();
 
-        List<LogProbsUtils.Range> windows = LogProbsUtils.jsonStringValueWindows(lp, "value");
+            LogProbs lp = LogProbsUtils.asLogProbs(chunk.getResult().getMetadata().get("logprobs"), mapper);
+            aligner.addAll(LogProbsUtils.content(lp));
 
-        var toks = LogProbsUtils.content(lp);
-        var full = LogProbsUtils.text(lp);
+            List<ExtractionStreamParser.Element> closed = parser.feed(chunk.getResult().getOutput().getText());
+            if (closed.isEmpty()) return List.of();
 
-        int n = toks.size();
-        int[] start = new int[n];
-        int[] end   = new int[n];
-        int pos = 0;
-        for (int i = 0; i < n; i++) {
-            start[i] = pos;
-            pos += toks.get(i).token().length();
-            end[i] = pos;
+            List<ExtractionItem> items = new ArrayList<>(closed.size());
+            for (ExtractionStreamParser.Element e : closed) {
+                items.add(toItem(e));
+            }
+            return items;
         }
 
-        int fromChar = 0;
+        List<ExtractionItem> finish() {
+            if (!parser.isArrayClosed()) {
+                throw new RuntimeException("Parse JSON fallito. Output:\n" + parser.text());
+            }
+            log.debug("Streaming terminato: {} estrazioni, {} token", parser.elements(), aligner.tokens().size());
+            return List.of();
+        }
 
-        for (var item : result.getExtractions()) {
-            String v = item.getValue();
+        private ExtractionItem toItem(ExtractionStreamParser.Element e) {
+            ExtractionItem item;
+            try {
+                item = mapper.readValue(parser.text(e.span()), ExtractionItem.class);
+            } catch (Exception ex) {
+                throw new RuntimeException("Parse JSON fallito. Output:\n" + parser.text(e.span()), ex);
+            }
+            // senza i logprobs fino alla fine del valore resta la confidence dichiarata dal modello
+            applyConfidence(item, aligner.tokens(), aligner.range(e.value()));
+            if (valueOnly) fillValueOnly(item);
+            return item;
+        }
+    }
 
-            if (v == null || "NOT_FOUND".equals(v)) {
-                item.setConfidence(0.0);
-                continue;
+    // null se l'output non si lascia leggere neanche dopo la riparazione locale
+    private ExtractionResult parse(String output) {
+        if (output == null) return null;
+        try {
+            return mapper.readValue(output, ExtractionResult.class);
+        } catch (Exception e) {
+            String repaired = repairJson(output);
+            if (repaired == null) return null;
+            try {
+                return mapper.readValue(repaired, ExtractionResult.class);
+            } catch (Exception again) {
+                return null;
             }
+        }
+    }
 
-            String pattern = "\"value\"\\s*:\\s*\"" + java.util.regex.Pattern.quote(v) + "\"";
-            java.util.regex.Matcher m = java.util.regex.Pattern.compile(pattern, java.util.regex.Pattern.DOTALL)
-                    .matcher(full);
+    // riparazioni sicure senza chiamare il modello: recinzioni ```json e testo prima o dopo l'oggetto
+    static String repairJson(String output) {
+        int start = output.indexOf('{');
+        int end = output.lastIndexOf('}');
+        if (start < 0 || end <= start) return null;
+        if (start == 0 && end == output.length() - 1) return null;
+        return output.substring(start, end + 1);
+    }
 
-            if (!m.find(fromChar)) {
-                continue;
-            }
+    // opzioni per chiamata: le altre (temperature, seed) restano quelle di default
+    private OpenAiChatOptions options(String modelOverride, boolean valueOnly) {
+        if (modelOverride == null && !structuredOutput) return null;
+        OpenAiChatOptions.Builder options = OpenAiChatOptions.builder().logprobs(true);
+        if (modelOverride != null) options.model(modelOverride);
+        if (structuredOutput) {
+            options.responseFormat(new ResponseFormat(ResponseFormat.Type.JSON_SCHEMA,
+                    valueOnly ? VALUE_ONLY_SCHEMA : EXTRACTION_SCHEMA));
+        }
+        return options.build();
+    }
 
-            java.util.regex.Matcher m2 = java.util.regex.Pattern
-                    .compile("\"value\"\\s*:\\s*\"(" + java.util.regex.Pattern.quote(v) + ")\"",
-                            java.util.regex.Pattern.DOTALL)
-                    .matcher(full);
+    private static void applyConfidence(ExtractionItem item, List<Content> toks, LogProbsUtils.Range value) {
+        String v = item.getValue();
+        if (v == null || "NOT_FOUND".equals(v)) {
+            item.setConfidence(0.0);
+            return;
+        }
+        if (value == null) return;
+
+        double confStrict = LogProbsUtils.windowConfidenceStrictTuned(
+                toks, value,
+                1.8,
+                2,
+                3,
+                0.6
+        );
+        if (!Double.isNaN(confStrict)) {
+            item.setConfidence(confStrict);
+        }
+    }
 
-            if (!m2.find(fromChar)) {
-                continue;
-            }
+    // value-only: status dalla confidence dei logprobs (senza logprobs il valore trovato vale OK), nessuna alternativa
+    private void fillValueOnly(ExtractionItem item) {
+        String v = item.getValue();
+        if (v == null || v.isBlank() || "NOT_FOUND".equals(v)) {
+            item.setValue("NOT_FOUND");
+            item.setStatus("NOT_FOUND");
+            item.setConfidence(0.0);
+        } else {
+            Double c = item.getConfidence();
+            item.setStatus(c != null && c < ambiguousBelow ? "AMBIGUO" : "OK");
+        }
+        item.setAlternatives(List.of());
+    }
 
-            int valStartChar = m2.start(1);
-            int valEndChar   = m2.end(1);
-            fromChar = valEndChar;
+    private static ExtractionResult withEvidence(ExtractionResult result, Function<String, Evidence> locate) {
+        if (result == null || result.getExtractions() == null) return result;
+        List<ExtractionItem> items = new ArrayList<>(result.getExtractions().size());
+        for (ExtractionItem item : result.getExtractions()) items.add(withEvidence(item, locate));
+        return ExtractionResult.builder().extractions(items).build();
+    }
 
-            int sTok = charToTokenIndex(start, end, valStartChar);
-            int eTok = charToTokenIndexEnd(start, end, valEndChar);
+    // copia: l'item può essere quello in cache, che resta senza snippet
+    private static ExtractionItem withEvidence(ExtractionItem item, Function<String, Evidence> locate) {
+        if (item == null || item.getEvidence() != null || "NOT_FOUND".equals(item.getStatus())) return item;
+        return ExtractionItem.builder()
+                .name(item.getName())
+                .value(item.getValue())
+                .evidence(locate.apply(item.getValue()))
+                .status(item.getStatus())
+                .confidence(item.getConfidence())
+                .alternatives(item.getAlternatives())
+                .build();
+    }
 
-            if (sTok >= 0 && eTok > sTok) {
-                var range = new LogProbsUtils.Range(sTok, eTok);
+    public TieredCache.Stats cacheStats() {
+        return resultCache == null ? null : resultCache.stats();
+    }
 
-                double confStrict = LogProbsUtils.windowConfidenceStrictTuned(
-                        toks, range,
-                        1.8,
-                        2,
-                        3,
-                        0.6
-                );
+    private String systemPrompt(String inputFormat, String notes, boolean valueOnly) {
+        return (valueOnly ? SYSTEM_VALUE_ONLY : SYSTEM).replace("[formato]", inputFormat).replace("[istruzioni]", notes);
+    }
 
-                if (!Double.isNaN(confStrict)) {
-                    item.setConfidence(confStrict);
-                }
-            }
-        }
+    private static boolean valueOnly(String outputProfile) {
+        return OutputProfile.of(outputProfile) == OutputProfile.VALUE_ONLY;
+    }
 
+    // sostituisce il testo da "from" (incluso) a "to" (escluso); i marcatori mancanti sono un errore di avvio
+    private static String section(String text, String from, String to, String replacement) {
+        int start = text.indexOf(from);
+        int end = start < 0 ? -1 : text.indexOf(to, start);
+        if (end < 0) throw new IllegalStateException("Sezione del prompt non trovata: " + from);
+        return text.substring(0, start) + replacement + text.substring(end);
+    }
 
-        return result;
+    // la cache si salta se disattivata o se il client la esclude con l'header apposito
+    private boolean useCache() {
+        return resultCache != null && !ExtractionResultCache.bypassRequested();
     }
 
-    private static int charToTokenIndex(int[] start, int[] end, int charPos) {
-        for (int i = 0; i < start.length; i++) {
-            if (charPos >= start[i] && charPos < end[i]) return i;
+    private ByteArrayResource userResource(DocUnitRequest request) {
+        if (!compactRecords) return toResource(request);
+
+        String compact = CompactRecordEncoder.encode(request.getRecords(), request.getFields(), request.getNotes());
+        if (log.isDebugEnabled()) {
+            int jsonTokens = chunker.estimateTokens(toJson(request));
+            int compactTokens = chunker.estimateTokens(compact);
+            log.debug("Record compatti: {} token invece di {} ({}%)", compactTokens, jsonTokens,
+                    jsonTokens == 0 ? 0 : Math.round(100.0 * (jsonTokens - compactTokens) / jsonTokens));
         }
-        return -1;
+        return new ByteArrayResource(compact.getBytes(StandardCharsets.UTF_8));
     }
 
-    private static int charToTokenIndexEnd(int[] start, int[] end, int charPos) {
-        for (int i = 0; i < start.length; i++) {
-            if (end[i] >= charPos) return i + 1;
+    private String toJson(Object o) {
+        try {
+            return mapper.writeValueAsString(o);
+        } catch (Exception e) {
+            throw new RuntimeException("Serializzazione JSON fallita", e);
         }
-        return start.length;
     }
 
-
-    private Resource toResource(Object o) {
+    private ByteArrayResource toResource(Object o) {
         try {
             return new ByteArrayResource(mapper.writeValueAsBytes(o));
         } catch (Exception e) {
@@ -0,0 +1,225 @@
+package it.piero.notiva.service.implementation;
+
+import software.amazon.awssdk.services.textract.model.Block;
+import software.amazon.awssdk.services.textract.model.BlockType;
+import software.amazon.awssdk.services.textract.model.BoundingBox;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+// Testo di pagina dalle LINE Textract: righe per vicinanza verticale, celle vicine unite e coppie etichetta/valore
+// rese come "Etichetta: valore". Un'istanza riusa i buffer tra le righe; non è thread-safe.
+final class LineLayoutText {
+
+    private static final float Y_TOL = 0.012f;
+    private static final float MIN_GAP = 0.06f;
+    private static final int LABEL_MAX_LEN = 48;
+
+    private static final Comparator<Block> BY_TOP_LEFT = (a, b) -> {
+        int c = Float.compare(box(a).top(), box(b).top());
+        return c != 0 ? c : Float.compare(box(a).left(), box(b).left());
+    };
+    private static final Comparator<Block> BY_LEFT = (a, b) -> Float.compare(box(a).left(), box(b).left());
+
+    private final StringBuilder out = new StringBuilder(4096);
+    private final StringBuilder scratch = new StringBuilder(256);
+    private Block[] lines = new Block[64];
+    private String[] texts = new String[16];
+    private float[] lefts = new float[16];
+    private float[] rights = new float[16];
+
+    String render(List<Block> blocks) {
+        int n = 0;
+        for (Block b : blocks) {
+            if (b.blockType() != BlockType.LINE || b.geometry() == null || b.geometry().boundingBox() == null) continue;
+            if (n == lines.length) lines = Arrays.copyOf(lines, n * 2);
+            lines[n++] = b;
+        }
+        Arrays.sort(lines, 0, n, BY_TOP_LEFT);
+
+        out.setLength(0);
+        int rowStart = 0;
+        for (int i = 1; i <= n; i++) {
+            if (i < n && Math.abs(box(lines[i]).top() - box(lines[rowStart]).top()) <= Y_TOL) continue;
+            Arrays.sort(lines, rowStart, i, BY_LEFT);
+            appendRow(rowStart, i);
+            rowStart = i;
+        }
+        // l'istanza resta viva tra le pagine: niente riferimenti ai blocchi e ai testi della pagina precedente
+        Arrays.fill(lines, 0, n, null);
+        Arrays.fill(texts, null);
+
+        return trim(out);
+    }
+
+    private void appendRow(int from, int to) {
+        ensureCells(to - from);
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            Block b = lines[i];
+            String t = b.text() == null ? "" : b.text().trim();
+            if (t.isEmpty()) continue;
+            BoundingBox bb = box(b);
+            texts[n] = t;
+            lefts[n] = bb.left();
+            rights[n] = bb.left() + bb.width();
+            n++;
+        }
+        if (n == 0) return;
+
+        if (n == 1) {
+            out.append(texts[0]).append('\n');
+            return;
+        }
+
+        // unione in place delle celle troppo vicine: si scrive sempre su un indice già letto
+        int m = 0;
+        String accText = texts[0];
+        float accLeft = lefts[0];
+        float accRight = rights[0];
+        for (int c = 1; c < n; c++) {
+            if (lefts[c] - accRight < MIN_GAP) {
+                scratch.setLength(0);
+                scratch.append(accText).append(' ').append(texts[c]);
+                accText = collapse(scratch);
+                accRight = Math.max(accRight, rights[c]);
+            } else {
+                texts[m] = accText;
+                lefts[m] = accLeft;
+                rights[m] = accRight;
+                m++;
+                accText = texts[c];
+                accLeft = lefts[c];
+                accRight = rights[c];
+            }
+        }
+        texts[m] = accText;
+        lefts[m] = accLeft;
+        rights[m] = accRight;
+        m++;
+
+        scratch.setLength(0);
+        if (m >= 2) {
+            boolean spaced = (lefts[1] - rights[0]) >= MIN_GAP;
+            boolean labelish = looksLikeLabel(texts[0], LABEL_MAX_LEN);
+            boolean valueish = looksLikeValue(texts[1]);
+
+            if (spaced && (labelish || !valueish)) {
+                scratch.append(stripTrailingColon(texts[0])).append(": ").append(texts[1]);
+                for (int c = 2; c < m; c++) {
+                    scratch.append(' ').append(texts[c]);
+                }
+                collapseInto(scratch, out);
+                out.append('\n');
+                return;
+            }
+        }
+
+        for (int c = 0; c < m; c++) {
+            if (c > 0) scratch.append(' ');
+            scratch.append(texts[c]);
+        }
+        collapseInto(scratch, out);
+        out.append('\n');
+    }
+
+    private void ensureCells(int size) {
+        if (texts.length >= size) return;
+        int cap = Math.max(size, texts.length * 2);
+        texts = Arrays.copyOf(texts, cap);
+        lefts = Arrays.copyOf(lefts, cap);
+        rights = Arrays.copyOf(rights, cap);
+    }
+
+    private static BoundingBox box(Block b) {
+        return b.geometry().boundingBox();
+    }
+
+    static boolean looksLikeLabel(String s, int maxLen) {
+        if (s == null) return false;
+        String t = s.trim();
+        if (t.isEmpty()) return false;
+        if (t.endsWith(":")) return true;
+        if (t.length() <= 3) return true;
+        if (t.length() <= maxLen && t.equals(t.toUpperCase())) return true;
+        return !matchesDigit(t);
+    }
+
+    static boolean looksLikeValue(String s) {
+        if (s == null) return false;
+        String t = s.trim();
+        if (t.isEmpty()) return false;
+        if (t.indexOf('€') >= 0) return true;
+        if (matchesDigit(t)) return true;
+        return hasRegexSpace(t) && !t.equals(t.toUpperCase());
+    }
+
+    static String stripTrailingColon(String s) {
+        if (s == null) return "";
+        return s.endsWith(":") ? s.substring(0, s.length() - 1).trim() : s.trim();
+    }
+
+    // equivale a s.matches(".*\\d.*"): '.' non attraversa i terminatori di riga, quindi ne basta uno per fallire
+    static boolean matchesDigit(CharSequence s) {
+        boolean digit = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') return false;
+            if (c >= '0' && c <= '9') digit = true;
+        }
+        return digit;
+    }
+
+    // equivale a s.replaceAll("\\s+", " ").trim()
+    static String collapse(CharSequence s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        collapseInto(s, sb);
+        return sb.toString();
+    }
+
+    static void collapseInto(CharSequence src, StringBuilder dst) {
+        int start = dst.length();
+        boolean inSpace = false;
+        for (int i = 0; i < src.length(); i++) {
+            char c = src.charAt(i);
+            if (isRegexSpace(c)) {
+                inSpace = true;
+                continue;
+            }
+            if (inSpace) {
+                dst.append(' ');
+                inSpace = false;
+            }
+            dst.append(c);
+        }
+        if (inSpace) dst.append(' ');
+
+        // trim() toglie anche i caratteri di controllo, non solo gli spazi
+        int a = start;
+        while (a < dst.length() && dst.charAt(a) <= ' ') a++;
+        int b = dst.length();
+        while (b > a && dst.charAt(b - 1) <= ' ') b--;
+        dst.setLength(b);
+        dst.delete(start, a);
+    }
+
+    private static boolean hasRegexSpace(CharSequence s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (isRegexSpace(s.charAt(i))) return true;
+        }
+        return false;
+    }
+
+    private static boolean isRegexSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static String trim(StringBuilder sb) {
+        int a = 0;
+        int b = sb.length();
+        while (a < b && sb.charAt(a) <= ' ') a++;
+        while (b > a && sb.charAt(b - 1) <= ' ') b--;
+        return sb.substring(a, b);
+    }
+}
@@ -0,0 +1,108 @@
+package it.piero.notiva.service.implementation;
+
+import it.piero.notiva.model.ExtractionItem;
+import it.piero.notiva.model.ExtractionResult;
+import it.piero.notiva.utils.ExtractionMerger;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+// Cascata di modelli: i livelli veloci rispondono per primi, i campi incerti (confidence da logprobs sotto la soglia
+// del livello, AMBIGUO o NOT_FOUND) passano al livello successivo; l'ultimo è il modello configurato in spring.ai.
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "notiva.llm.cascade", name = "enabled", havingValue = "true")
+public class ModelCascade {
+
+    public record Tier(String model, double minConfidence) {}
+
+    public record TierStats(String model, double minConfidence, long fields, long escalated) {}
+
+    private final List<Tier> tiers;
+    private final AtomicLong[] fields;
+    private final AtomicLong[] escalated;
+    private final boolean escalateAmbiguous;
+    private final boolean escalateNotFound;
+
+    public ModelCascade(@Value("${notiva.llm.cascade.models:gpt-4o-mini}") List<String> models,
+                        @Value("${notiva.llm.cascade.minConfidence:0.75}") List<Double> minConfidence,
+                        @Value("${notiva.llm.cascade.escalateAmbiguous:true}") boolean escalateAmbiguous,
+                        @Value("${notiva.llm.cascade.escalateNotFound:true}") boolean escalateNotFound) {
+        List<Tier> t = new ArrayList<>(models.size());
+        for (int i = 0; i < models.size(); i++) {
+            String m = models.get(i).trim();
+            if (m.isEmpty()) continue;
+            // una sola soglia vale per tutti i livelli
+            double min = minConfidence.isEmpty() ? 0.0 : minConfidence.get(Math.min(i, minConfidence.size() - 1));
+            t.add(new Tier(m, min));
+        }
+        this.tiers = List.copyOf(t);
+        this.fields = counters(tiers.size());
+        this.escalated = counters(tiers.size());
+        this.escalateAmbiguous = escalateAmbiguous;
+        this.escalateNotFound = escalateNotFound;
+        log.info("Cascata di modelli: {} poi il modello principale", tiers);
+    }
+
+    public List<Tier> tiers() {
+        return tiers;
+    }
+
+    // ogni livello riceve solo i campi rimasti incerti al livello prima; le risposte di tutti i livelli si uniscono
+    // per campo come i blocchi di record: vince lo stato migliore e poi la confidence, le altre restano alternative.
+    // ask(campi, modello) con modello null = modello principale
+    public ExtractionResult run(List<String> fields, BiFunction<List<String>, String, ExtractionResult> ask) {
+        List<ExtractionResult> perTier = new ArrayList<>(tiers.size() + 1);
+        List<String> pending = fields;
+        for (int t = 0; t < tiers.size() && !pending.isEmpty(); t++) {
+            ExtractionResult answer = ExtractionMerger.merge(pending, List.of(ask.apply(pending, tiers.get(t).model())));
+            perTier.add(answer);
+            List<ExtractionItem> items = answer.getExtractions();
+            List<String> next = new ArrayList<>();
+            for (int i = 0; i < pending.size(); i++) {
+                if (needsEscalation(t, items.get(i))) next.add(pending.get(i));
+            }
+            record(t, pending.size(), next.size());
+            pending = next;
+        }
+        if (!pending.isEmpty()) perTier.add(ask.apply(pending, null));
+        return ExtractionMerger.merge(fields, perTier);
+    }
+
+    public boolean needsEscalation(int tier, ExtractionItem item) {
+        if (item == null) return true;
+        String status = item.getStatus();
+        if ("NOT_FOUND".equals(status) || item.getValue() == null || "NOT_FOUND".equals(item.getValue())) {
+            return escalateNotFound;
+        }
+        if ("AMBIGUO".equals(status) && escalateAmbiguous) return true;
+        return item.getConfidence() == null || item.getConfidence() < tiers.get(tier).minConfidence();
+    }
+
+    public void record(int tier, int asked, int escalatedFields) {
+        fields[tier].addAndGet(asked);
+        escalated[tier].addAndGet(escalatedFields);
+        log.debug("Cascata, livello {} ({}): {} campi, {} passati al livello successivo",
+                tier, tiers.get(tier).model(), asked, escalatedFields);
+    }
+
+    public List<TierStats> stats() {
+        List<TierStats> out = new ArrayList<>(tiers.size());
+        for (int i = 0; i < tiers.size(); i++) {
+            out.add(new TierStats(tiers.get(i).model(), tiers.get(i).minConfidence(), fields[i].get(), escalated[i].get()));
+        }
+        return out;
+    }
+
+    private static AtomicLong[] counters(int n) {
+        AtomicLong[] out = new AtomicLong[n];
+        for (int i = 0; i < n; i++) out[i] = new AtomicLong();
+        return out;
+    }
+}
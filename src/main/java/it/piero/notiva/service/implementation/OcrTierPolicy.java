@@ -0,0 +1,116 @@
+package it.piero.notiva.service.implementation;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.services.textract.model.Block;
+import software.amazon.awssdk.services.textract.model.BlockType;
+import software.amazon.awssdk.services.textract.model.BoundingBox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Decide, dalle sole LINE di DetectDocumentText, se una pagina merita AnalyzeDocument (TABLES + LAYOUT):
+// righe con più celle i cui bordi sinistri si allineano in colonne indicano tabelle o layout a colonne.
+@Slf4j
+@Component
+public class OcrTierPolicy {
+
+    private static final float Y_TOL = 0.012f;
+    // larghezza delle fasce di allineamento orizzontale (coordinate normalizzate)
+    private static final float X_BIN = 0.01f;
+    private static final int BINS = (int) (1 / X_BIN) + 1;
+
+    private final boolean enabled;
+    private final int minRows;
+    private final int minColumns;
+    private final double columnRowRatio;
+
+    public OcrTierPolicy(@Value("${notiva.textract.tiered.enabled:false}") boolean enabled,
+                         @Value("${notiva.textract.tiered.minRows:3}") int minRows,
+                         @Value("${notiva.textract.tiered.minColumns:3}") int minColumns,
+                         @Value("${notiva.textract.tiered.columnRowRatio:0.4}") double columnRowRatio) {
+        this.enabled = enabled;
+        this.minRows = minRows;
+        this.minColumns = minColumns;
+        this.columnRowRatio = columnRowRatio;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean needsFullAnalysis(List<Block> blocks) {
+        List<BoundingBox> lines = new ArrayList<>();
+        for (Block b : blocks) {
+            if (b.blockType() == BlockType.LINE && b.geometry() != null && b.geometry().boundingBox() != null) {
+                lines.add(b.geometry().boundingBox());
+            }
+        }
+        if (lines.isEmpty()) return false;
+        lines.sort((a, b) -> Float.compare(a.top(), b.top()));
+
+        // per ogni fascia: in quante righe multi-cella compare un bordo sinistro (±1 fascia)
+        int[] gridRowsPerBin = new int[BINS];
+        int[] colRowsPerBin = new int[BINS];
+        int gridRows = 0;
+        int multiRows = 0;
+        int rows = 0;
+
+        boolean[] hit = new boolean[BINS];
+        int rowStart = 0;
+        for (int i = 1; i <= lines.size(); i++) {
+            if (i < lines.size() && Math.abs(lines.get(i).top() - lines.get(rowStart).top()) <= Y_TOL) continue;
+
+            rows++;
+            int cells = i - rowStart;
+            if (cells >= 2) {
+                Arrays.fill(hit, false);
+                for (int k = rowStart; k < i; k++) {
+                    int bin = bin(lines.get(k).left());
+                    for (int d = Math.max(0, bin - 1); d <= Math.min(BINS - 1, bin + 1); d++) hit[d] = true;
+                }
+                multiRows++;
+                if (cells >= minColumns) gridRows++;
+                for (int d = 0; d < BINS; d++) {
+                    if (!hit[d]) continue;
+                    colRowsPerBin[d]++;
+                    if (cells >= minColumns) gridRowsPerBin[d]++;
+                }
+            }
+            rowStart = i;
+        }
+
+        // tabella: abbastanza righe con >= minColumns celle che condividono >= minColumns colonne
+        if (gridRows >= minRows && alignedColumns(gridRowsPerBin, minRows) >= minColumns) {
+            log.debug("Tabella probabile: {} righe a griglia", gridRows);
+            return true;
+        }
+
+        // layout a colonne: una quota rilevante delle righe ha due o più blocchi allineati
+        int colThreshold = Math.max(minRows, (int) Math.ceil(rows * columnRowRatio));
+        if (multiRows >= colThreshold && alignedColumns(colRowsPerBin, colThreshold) >= 2) {
+            log.debug("Layout a colonne probabile: {} righe su {} con più blocchi", multiRows, rows);
+            return true;
+        }
+        return false;
+    }
+
+    // colonne distinte: fasce sopra soglia, contando una sola volta le fasce adiacenti
+    private static int alignedColumns(int[] rowsPerBin, int threshold) {
+        int columns = 0;
+        boolean inRun = false;
+        for (int count : rowsPerBin) {
+            boolean over = count >= threshold;
+            if (over && !inRun) columns++;
+            inRun = over;
+        }
+        return columns;
+    }
+
+    private static int bin(float x) {
+        int b = (int) (x / X_BIN);
+        return b < 0 ? 0 : Math.min(BINS - 1, b);
+    }
+}
@@ -0,0 +1,234 @@
+package it.piero.notiva.service.implementation;
+
+import it.piero.notiva.model.DocUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+// Prefiltro lessicale (BM25) dei record prima del prompt: per ogni campo tiene i record più pertinenti
+// al nome del campo e ai suoi sinonimi, più il contesto vicino sulla stessa pagina.
+// Se anche un solo campo non ha riscontri i record passano tutti: meglio pagare token che perdere il campo.
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "notiva.llm.prefilter", name = "enabled", havingValue = "true")
+public class RecordRelevanceFilter {
+
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern SPLIT = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private static final Set<String> STOPWORDS = Set.of(
+            "di", "del", "della", "dello", "dei", "degli", "delle", "da", "dal", "dalla", "in", "nel", "nella",
+            "a", "al", "alla", "il", "lo", "la", "i", "gli", "le", "un", "una", "uno", "e", "o", "per", "con",
+            "su", "sul", "sulla", "tra", "fra", "che", "the", "of", "and");
+
+    // sinonimi di dominio (radici già normalizzate): il nome del campo raramente coincide con l'etichetta nel documento
+    private static final Map<String, List<String>> SYNONYMS = synonyms(
+            List.of("importo", "totale", "ammontare", "corrispettivo", "prezzo", "valore", "euro", "eur"),
+            List.of("data", "scadenza", "termine", "entro", "giorno"),
+            List.of("codice", "cod", "cig", "cup", "identificativo", "numero", "n"),
+            List.of("oggetto", "descrizione", "titolo", "denominazione"),
+            List.of("ente", "amministrazione", "stazione", "appaltante", "committente"),
+            List.of("durata", "mesi", "anni", "periodo"),
+            List.of("telefono", "tel", "cellulare", "recapito"),
+            List.of("email", "mail", "pec", "posta"),
+            List.of("iva", "imposta", "aliquota"),
+            List.of("percentuale", "ribasso", "sconto"),
+            List.of("responsabile", "rup", "referente"));
+
+    private final int topK;
+    private final double recallMargin;
+    private final int contextWindow;
+
+    public RecordRelevanceFilter(@Value("${notiva.llm.prefilter.topK:20}") int topK,
+                                 @Value("${notiva.llm.prefilter.recallMargin:0.2}") double recallMargin,
+                                 @Value("${notiva.llm.prefilter.contextWindow:1}") int contextWindow) {
+        this.topK = Math.max(1, topK);
+        this.recallMargin = Math.max(0.0, Math.min(1.0, recallMargin));
+        this.contextWindow = Math.max(0, contextWindow);
+    }
+
+    public List<DocUnit> filter(List<DocUnit> records, List<String> fields) {
+        if (records == null || fields == null || fields.isEmpty() || records.size() <= topK) return records;
+
+        Index index = new Index(records);
+        boolean[] keep = new boolean[records.size()];
+
+        for (String field : fields) {
+            double[] scores = index.score(queryTerms(field));
+            int[] ranked = rank(scores);
+            if (ranked.length == 0) {
+                log.debug("Prefiltro: nessun riscontro per il campo '{}', invio tutti i record", field);
+                return records;
+            }
+
+            // top K, più chi resta entro il margine dal K-esimo: i quasi pari non vengono tagliati a caso
+            int k = Math.min(topK, ranked.length);
+            double threshold = scores[ranked[k - 1]] * (1.0 - recallMargin);
+            for (int i = 0; i < ranked.length; i++) {
+                if (i >= k && scores[ranked[i]] < threshold) break;
+                keepWithContext(records, keep, ranked[i]);
+            }
+        }
+
+        List<DocUnit> kept = new ArrayList<>();
+        for (int i = 0; i < records.size(); i++) {
+            if (keep[i]) kept.add(records.get(i));
+        }
+        log.info("Prefiltro lessicale: {} record su {} per {} campi", kept.size(), records.size(), fields.size());
+        return kept;
+    }
+
+    // vicini nello stesso file e pagina: etichetta sopra la tabella, didascalie, righe spezzate
+    private void keepWithContext(List<DocUnit> records, boolean[] keep, int hit) {
+        keep[hit] = true;
+        DocUnit u = records.get(hit);
+        for (int d = 1; d <= contextWindow; d++) {
+            for (int j : new int[]{hit - d, hit + d}) {
+                if (j < 0 || j >= records.size() || keep[j]) continue;
+                if (samePage(u, records.get(j))) keep[j] = true;
+            }
+        }
+    }
+
+    private static boolean samePage(DocUnit a, DocUnit b) {
+        return Objects.equals(a.getPage(), b.getPage()) && Objects.equals(a.getOrigin(), b.getOrigin());
+    }
+
+    // indici con punteggio > 0, dal più alto; a parità vince l'ordine del documento
+    private static int[] rank(double[] scores) {
+        return IntStream.range(0, scores.length)
+                .filter(i -> scores[i] > 0)
+                .boxed()
+                .sorted((x, y) -> {
+                    int c = Double.compare(scores[y], scores[x]);
+                    return c != 0 ? c : Integer.compare(x, y);
+                })
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+
+    static Set<String> queryTerms(String field) {
+        Set<String> terms = new LinkedHashSet<>();
+        for (String t : tokenize(field)) {
+            if (STOPWORDS.contains(t)) continue;
+            terms.add(stem(t));
+            List<String> syn = SYNONYMS.get(stem(t));
+            if (syn != null) terms.addAll(syn);
+        }
+        return terms;
+    }
+
+    // stessa normalizzazione del prompt: maiuscole, accenti e punteggiatura non contano
+    static List<String> tokenize(String s) {
+        if (s == null || s.isBlank()) return List.of();
+        String n = MARKS.matcher(Normalizer.normalize(s, Normalizer.Form.NFD)).replaceAll("").toLowerCase(Locale.ROOT);
+        List<String> out = new ArrayList<>();
+        for (String t : SPLIT.split(n)) {
+            if (!t.isEmpty()) out.add(t);
+        }
+        return out;
+    }
+
+    // stemming minimo per l'italiano: importo/importi, scadenza/scadenze
+    static String stem(String t) {
+        if (t.length() > 4 && "aeiou".indexOf(t.charAt(t.length() - 1)) >= 0) return t.substring(0, t.length() - 1);
+        return t;
+    }
+
+    @SafeVarargs
+    private static Map<String, List<String>> synonyms(List<String>... groups) {
+        Map<String, List<String>> out = new HashMap<>();
+        for (List<String> group : groups) {
+            List<String> stems = group.stream().map(RecordRelevanceFilter::stem).distinct().toList();
+            for (String s : stems) out.put(s, stems);
+        }
+        return out;
+    }
+
+    // indice invertito sui record: testo per i TEXT, tutte le celle per le TABLE
+    private static final class Index {
+
+        private final Map<String, int[]> postings = new HashMap<>();
+        private final int[] lengths;
+        private final double avgLength;
+
+        Index(List<DocUnit> records) {
+            int n = records.size();
+            lengths = new int[n];
+            Map<String, Map<Integer, Integer>> tf = new HashMap<>();
+            long total = 0;
+            for (int i = 0; i < n; i++) {
+                List<String> terms = terms(records.get(i));
+                lengths[i] = terms.size();
+                total += terms.size();
+                for (String t : terms) {
+                    tf.computeIfAbsent(t, k -> new HashMap<>()).merge(i, 1, Integer::sum);
+                }
+            }
+            avgLength = n == 0 ? 0 : (double) total / n;
+
+            // postings come coppie piatte [doc, tf, doc, tf, ...]
+            for (Map.Entry<String, Map<Integer, Integer>> e : tf.entrySet()) {
+                int[] p = new int[e.getValue().size() * 2];
+                int j = 0;
+                for (Map.Entry<Integer, Integer> d : e.getValue().entrySet()) {
+                    p[j++] = d.getKey();
+                    p[j++] = d.getValue();
+                }
+                postings.put(e.getKey(), p);
+            }
+        }
+
+        double[] score(Set<String> query) {
+            int n = lengths.length;
+            double[] scores = new double[n];
+            for (String q : query) {
+                int[] p = postings.get(q);
+                if (p == null) continue;
+                int df = p.length / 2;
+                double idf = Math.log(1 + (n - df + 0.5) / (df + 0.5));
+                for (int j = 0; j < p.length; j += 2) {
+                    int doc = p[j];
+                    int f = p[j + 1];
+                    double norm = f + K1 * (1 - B + B * lengths[doc] / Math.max(avgLength, 1e-9));
+                    scores[doc] += idf * f * (K1 + 1) / norm;
+                }
+            }
+            return scores;
+        }
+
+        private static List<String> terms(DocUnit u) {
+            List<String> out = new ArrayList<>();
+            addTerms(u.getText(), out);
+            if (u.getRows() != null) {
+                for (List<String> row : u.getRows()) {
+                    if (row == null) continue;
+                    for (String cell : row) addTerms(cell, out);
+                }
+            }
+            return out;
+        }
+
+        private static void addTerms(String s, List<String> out) {
+            for (String t : tokenize(s)) {
+                if (!STOPWORDS.contains(t)) out.add(stem(t));
+            }
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package it.piero.notiva.service.implementation;
+
+import it.piero.notiva.model.DocUnit;
+import it.piero.notiva.model.DocUnitType;
+import it.piero.notiva.model.Evidence;
+import it.piero.notiva.model.ExtractionItem;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Pre-estrazione deterministica senza LLM: coppie "Etichetta: Valore" nei testi e righe chiave/valore nelle tabelle.
+// Risolve un campo solo se l'etichetta coincide col nome del campo (stessa normalizzazione del prompt) e c'è un
+// unico valore valido; tutto il resto (ambiguità, campi descrittivi o elenchi) resta al modello.
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "notiva.llm.rules", name = "enabled", havingValue = "true")
+public class RuleBasedExtractor {
+
+    private static final int LABEL_MAX_LEN = 48;
+    private static final int VALUE_MAX_LEN = 120;
+
+    private static final double EXACT_LABEL = 0.95;
+    private static final double SAME_TOKENS = 0.90;
+
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern NOT_WORD = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private static final Set<String> STOPWORDS = Set.of(
+            "di", "del", "della", "dello", "dei", "degli", "delle", "da", "dal", "dalla", "in", "nel", "nella",
+            "il", "lo", "la", "i", "gli", "le", "un", "una", "e", "per", "con", "al", "alla");
+
+    // stessi token del prompt per i campi monetari e per quelli che vogliono anche la descrizione
+    private static final Set<String> MONEY = Set.of(
+            "importo", "importi", "totale", "canone", "acconto", "saldo", "lordo", "netto", "iva", "imponibile", "caparra");
+    private static final Set<String> DESCRIPTIVE = Set.of(
+            "descrizione", "dettaglio", "composizione", "ripartizione", "suddivisione", "breakdown", "voci", "items",
+            "lista", "elenco");
+    private static final Set<String> DATE = Set.of("data", "scadenza", "termine");
+
+    // importi it-IT (1.234,56), senza migliaia (1234,56) o con punto decimale (1234.56)
+    private static final Pattern AMOUNT = Pattern.compile(
+            "(?<![\\d.,])(\\d{1,3}(?:\\.\\d{3})+(?:,\\d{1,2})?|\\d+\\.\\d{1,2}|\\d+(?:,\\d{1,2})?)(?![\\d.,]\\d)(\\s*%)?");
+    private static final Pattern OTHER_CURRENCY = Pattern.compile("[$£¥]|\\b(?:USD|GBP|CHF|JPY)\\b");
+    private static final Pattern DATE_VALUE = Pattern.compile(
+            "\\b(?:\\d{4}-\\d{2}-\\d{2}|\\d{1,2}[/.-]\\d{1,2}[/.-]\\d{2,4}"
+                    + "|\\d{1,2}\\s+(?:gennaio|febbraio|marzo|aprile|maggio|giugno|luglio|agosto|settembre|ottobre|novembre|dicembre)\\s+\\d{4})\\b",
+            Pattern.CASE_INSENSITIVE);
+
+    private record Pair(String label, String value, Integer page, String snippet) {}
+
+    private record Candidate(String value, double confidence, Pair source) {}
+
+    private final double minConfidence;
+
+    public RuleBasedExtractor(@Value("${notiva.llm.rules.minConfidence:0.9}") double minConfidence) {
+        this.minConfidence = minConfidence;
+    }
+
+    // solo i campi risolti, per nome richiesto
+    public Map<String, ExtractionItem> extract(List<DocUnit> records, List<String> fields) {
+        return resolve(pairs(records), fields);
+    }
+
+    // testo di analyzeText: una coppia "Etichetta: valore" per riga
+    public Map<String, ExtractionItem> extract(String text, List<String> fields) {
+        List<Pair> pairs = new ArrayList<>();
+        if (text != null) linePairs(text, null, pairs);
+        return resolve(pairs, fields);
+    }
+
+    private Map<String, ExtractionItem> resolve(List<Pair> pairs, List<String> fields) {
+        Map<String, ExtractionItem> out = new LinkedHashMap<>();
+        if (fields == null || pairs.isEmpty()) return out;
+
+        List<String> labels = new ArrayList<>(pairs.size());
+        List<Set<String>> labelTokens = new ArrayList<>(pairs.size());
+        for (Pair p : pairs) {
+            labels.add(normalize(p.label()));
+            labelTokens.add(contentTokens(p.label()));
+        }
+
+        for (String field : fields) {
+            ExtractionItem item = resolveField(field, pairs, labels, labelTokens);
+            if (item != null) out.put(field, item);
+        }
+        log.debug("Pre-estrazione a regole: {} campi su {} risolti", out.size(), fields.size());
+        return out;
+    }
+
+    private ExtractionItem resolveField(String field, List<Pair> pairs, List<String> labels, List<Set<String>> labelTokens) {
+        String key = normalize(field);
+        Set<String> tokens = contentTokens(field);
+        if (key.isEmpty() || tokens.isEmpty()) return null;
+        Set<String> words = Set.copyOf(Arrays.asList(key.split(" ")));
+        if (words.stream().anyMatch(DESCRIPTIVE::contains)) return null;
+        boolean money = words.stream().anyMatch(MONEY::contains);
+        boolean date = !money && words.stream().anyMatch(DATE::contains);
+
+        Candidate best = null;
+        for (int i = 0; i < pairs.size(); i++) {
+            double confidence;
+            if (labels.get(i).equals(key)) {
+                confidence = EXACT_LABEL;
+            } else if (labelTokens.get(i).equals(tokens)) {
+                confidence = SAME_TOKENS;
+            } else {
+                continue;
+            }
+
+            String value = money ? formatMoney(pairs.get(i).value()) : date ? findDate(pairs.get(i).value()) : plain(pairs.get(i).value());
+            if (value == null) continue;
+
+            if (best != null && !normalize(best.value()).equals(normalize(value))) {
+                // due valori diversi per la stessa etichetta: lo decide il modello (AMBIGUO, alternative)
+                return null;
+            }
+            if (best == null || confidence > best.confidence()) best = new Candidate(value, confidence, pairs.get(i));
+        }
+        if (best == null || best.confidence() < minConfidence) return null;
+
+        return ExtractionItem.builder()
+                .name(field)
+                .value(best.value())
+                .evidence(Evidence.builder().page(best.source().page()).snippet(best.source().snippet()).build())
+                .status("OK")
+                .confidence(best.confidence())
+                .alternatives(List.of())
+                .build();
+    }
+
+    private static List<Pair> pairs(List<DocUnit> records) {
+        List<Pair> out = new ArrayList<>();
+        if (records == null) return out;
+        for (DocUnit u : records) {
+            if (u == null) continue;
+            if (u.getType() == DocUnitType.TABLE) {
+                tablePairs(u, out);
+            } else if (u.getText() != null) {
+                linePairs(u.getText(), u.getPage(), out);
+            }
+        }
+        return out;
+    }
+
+    private static void linePairs(String text, Integer page, List<Pair> out) {
+        for (String line : text.split("\n")) {
+            int colon = line.indexOf(':');
+            if (colon <= 0 || colon > LABEL_MAX_LEN) continue;
+            String label = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (!label.isEmpty() && !value.isEmpty()) out.add(new Pair(label, value, page, line.trim()));
+        }
+    }
+
+    // prima cella = chiave, le altre non vuote = valore (" | "); riga con chiave vuota = continuazione della precedente
+    private static void tablePairs(DocUnit u, List<Pair> out) {
+        if (u.getRows() == null) return;
+        String label = null;
+        StringBuilder value = new StringBuilder();
+        for (List<String> row : u.getRows()) {
+            if (row == null || row.isEmpty()) continue;
+            String key = row.get(0) == null ? "" : row.get(0).trim();
+            if (!key.isEmpty()) {
+                addTablePair(label, value, u.getPage(), out);
+                label = stripColon(key);
+                value.setLength(0);
+            }
+            for (int c = 1; c < row.size(); c++) {
+                String cell = row.get(c) == null ? "" : row.get(c).trim();
+                if (cell.isEmpty()) continue;
+                if (!value.isEmpty()) value.append(" | ");
+                value.append(cell);
+                // "Etichetta: valore" dentro una cella vale come coppia a sé
+                linePairs(cell, u.getPage(), out);
+            }
+        }
+        addTablePair(label, value, u.getPage(), out);
+    }
+
+    private static void addTablePair(String label, StringBuilder value, Integer page, List<Pair> out) {
+        if (label == null || label.isEmpty() || value.isEmpty() || label.length() > LABEL_MAX_LEN) return;
+        String v = value.toString();
+        out.add(new Pair(label, v, page, label + " | " + v));
+    }
+
+    private static String stripColon(String s) {
+        return s.endsWith(":") ? s.substring(0, s.length() - 1).trim() : s;
+    }
+
+    // un solo importo pulito, in formato it-IT con l'euro; altre valute o più importi restano al modello
+    static String formatMoney(String value) {
+        if (OTHER_CURRENCY.matcher(value).find()) return null;
+        Matcher m = AMOUNT.matcher(value);
+        BigDecimal amount = null;
+        while (m.find()) {
+            if (m.group(2) != null) return null;
+            if (amount != null) return null;
+            amount = parseAmount(m.group(1));
+        }
+        if (amount == null) return null;
+        DecimalFormat it = new DecimalFormat("#,##0.00", DecimalFormatSymbols.getInstance(Locale.ITALY));
+        return "€ " + it.format(amount.setScale(2, RoundingMode.HALF_UP));
+    }
+
+    private static BigDecimal parseAmount(String s) {
+        if (s.indexOf(',') >= 0 || s.indexOf('.') < 0 || s.matches("\\d{1,3}(\\.\\d{3})+")) {
+            return new BigDecimal(s.replace(".", "").replace(',', '.'));
+        }
+        return new BigDecimal(s);
+    }
+
+    static String findDate(String value) {
+        Matcher m = DATE_VALUE.matcher(value);
+        if (!m.find()) return null;
+        String date = m.group();
+        return m.find() ? null : date;
+    }
+
+    private static String plain(String value) {
+        String v = value.trim();
+        return v.isEmpty() || v.length() > VALUE_MAX_LEN ? null : v;
+    }
+
+    // confronto del prompt: maiuscole, accenti e punteggiatura non contano, spazi e underscore equivalenti
+    static String normalize(String s) {
+        if (s == null) return "";
+        String n = MARKS.matcher(Normalizer.normalize(s, Normalizer.Form.NFD)).replaceAll("").toLowerCase(Locale.ROOT);
+        return NOT_WORD.matcher(n).replaceAll(" ").trim();
+    }
+
+    private static Set<String> contentTokens(String s) {
+        Set<String> out = new TreeSet<>();
+        for (String t : normalize(s).split(" ")) {
+            if (!t.isEmpty() && !STOPWORDS.contains(t)) out.add(t);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,114 @@
+package it.piero.notiva.service.implementation;
+
+import software.amazon.awssdk.services.textract.model.BoundingBox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Griglia uniforme per pagina sulle aree di tabella (coordinate normalizzate 0..1): la copertura di una
+// linea si verifica solo contro i box che condividono almeno una cella, invece che contro tutti.
+final class TableAreaIndex {
+
+    private static final int MAX_GRID = 64;
+
+    private final Map<Integer, Grid> byPage;
+
+    private TableAreaIndex(Map<Integer, Grid> byPage) {
+        this.byPage = byPage;
+    }
+
+    static TableAreaIndex of(Map<Integer, List<BoundingBox>> boxesByPage) {
+        Map<Integer, Grid> byPage = new HashMap<>();
+        boxesByPage.forEach((page, boxes) -> {
+            if (!boxes.isEmpty()) byPage.put(page, new Grid(boxes));
+        });
+        return new TableAreaIndex(byPage);
+    }
+
+    // stessa semantica del confronto esaustivo: true se almeno un box copre minCoverage dell'area del blocco
+    boolean covers(BoundingBox lb, int page, double minCoverage) {
+        if (lb == null) return false;
+        Grid grid = byPage.get(page);
+        if (grid == null) return false;
+
+        double la = Math.max(0, lb.width()) * Math.max(0, lb.height());
+        if (la <= 0) return false;
+
+        return grid.anyCovers(lb.left(), lb.top(), lb.left() + lb.width(), lb.top() + lb.height(), la, minCoverage);
+    }
+
+    private static final class Grid {
+
+        private final int size;
+        private final float[] left, top, right, bottom;
+        // box della cella (cx, cy): items[cellStart[k] .. cellStart[k + 1]) con k = cy * size + cx
+        private final int[] cellStart;
+        private final int[] items;
+        // marcatura per non valutare due volte un box che occupa più celle
+        private final int[] seen;
+        private int query;
+
+        Grid(List<BoundingBox> boxes) {
+            int n = boxes.size();
+            this.size = Math.max(1, Math.min(MAX_GRID, (int) Math.ceil(Math.sqrt(n))));
+            this.left = new float[n];
+            this.top = new float[n];
+            this.right = new float[n];
+            this.bottom = new float[n];
+            this.seen = new int[n];
+
+            int[] counts = new int[size * size + 1];
+            for (int i = 0; i < n; i++) {
+                BoundingBox b = boxes.get(i);
+                left[i] = b.left();
+                top[i] = b.top();
+                right[i] = b.left() + b.width();
+                bottom[i] = b.top() + b.height();
+                for (int cy = cell(Math.min(top[i], bottom[i])); cy <= cell(Math.max(top[i], bottom[i])); cy++) {
+                    for (int cx = cell(Math.min(left[i], right[i])); cx <= cell(Math.max(left[i], right[i])); cx++) {
+                        counts[cy * size + cx + 1]++;
+                    }
+                }
+            }
+            for (int k = 0; k < size * size; k++) counts[k + 1] += counts[k];
+            this.cellStart = counts;
+            this.items = new int[counts[size * size]];
+
+            int[] fill = Arrays.copyOf(counts, size * size);
+            for (int i = 0; i < n; i++) {
+                for (int cy = cell(Math.min(top[i], bottom[i])); cy <= cell(Math.max(top[i], bottom[i])); cy++) {
+                    for (int cx = cell(Math.min(left[i], right[i])); cx <= cell(Math.max(left[i], right[i])); cx++) {
+                        items[fill[cy * size + cx]++] = i;
+                    }
+                }
+            }
+        }
+
+        boolean anyCovers(float l, float t, float r, float b, double area, double minCoverage) {
+            int stamp = ++query;
+            for (int cy = cell(Math.min(t, b)); cy <= cell(Math.max(t, b)); cy++) {
+                for (int cx = cell(Math.min(l, r)); cx <= cell(Math.max(l, r)); cx++) {
+                    int k = cy * size + cx;
+                    for (int p = cellStart[k]; p < cellStart[k + 1]; p++) {
+                        int i = items[p];
+                        if (seen[i] == stamp) continue;
+                        seen[i] = stamp;
+
+                        double ix = Math.max(0, Math.min((double) r, right[i]) - Math.max((double) l, left[i]));
+                        double iy = Math.max(0, Math.min((double) b, bottom[i]) - Math.max((double) t, top[i]));
+                        if (ix * iy / area >= minCoverage) return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        // coordinate fuori da 0..1 finiscono nelle celle di bordo, così restano confrontabili tra loro
+        private int cell(float v) {
+            int c = (int) (v * size);
+            return c < 0 ? 0 : Math.min(size - 1, c);
+        }
+    }
+}
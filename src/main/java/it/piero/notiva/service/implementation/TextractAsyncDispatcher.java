@@ -0,0 +1,142 @@
+package it.piero.notiva.service.implementation;
+
+import it.piero.notiva.utils.AimdLimiter;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+import software.amazon.awssdk.services.textract.TextractAsyncClient;
+import software.amazon.awssdk.services.textract.model.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "notiva.textract.async", name = "enabled", havingValue = "true", matchIfMissing = true)
+public class TextractAsyncDispatcher {
+
+    private static final long BASE_BACKOFF_MS = 200;
+    private static final long MAX_BACKOFF_MS = 5_000;
+
+    private final TextractAsyncClient textractAsyncClient;
+    private final AimdLimiter limiter;
+    private final int maxRetries;
+    private final ExecutorService retryExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+    public TextractAsyncDispatcher(TextractAsyncClient textractAsyncClient,
+                                   @Value("${notiva.textract.async.initialConcurrency:4}") int initialConcurrency,
+                                   @Value("${notiva.textract.async.minConcurrency:1}") int minConcurrency,
+                                   @Value("${notiva.textract.async.maxConcurrency:16}") int maxConcurrency,
+                                   @Value("${notiva.textract.async.maxRetries:5}") int maxRetries) {
+        this.textractAsyncClient = textractAsyncClient;
+        this.limiter = new AimdLimiter(initialConcurrency, minConcurrency, maxConcurrency);
+        this.maxRetries = maxRetries;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        retryExecutor.shutdownNow();
+    }
+
+    // blocca il chiamante finché il limite di concorrenza non concede uno slot: fa da backpressure sul rendering
+    public CompletableFuture<AnalyzeDocumentResponse> analyzeDocument(AnalyzeDocumentRequest req) {
+        return dispatch(() -> textractAsyncClient.analyzeDocument(req));
+    }
+
+    public CompletableFuture<DetectDocumentTextResponse> detectDocumentText(DetectDocumentTextRequest req) {
+        return dispatch(() -> textractAsyncClient.detectDocumentText(req));
+    }
+
+    int limit() {
+        return limiter.limit();
+    }
+
+    <T> CompletableFuture<T> dispatch(Supplier<CompletableFuture<T>> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(call, 0, result);
+        return result;
+    }
+
+    private <T> void attempt(Supplier<CompletableFuture<T>> call, int retry, CompletableFuture<T> result) {
+        try {
+            limiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(e);
+            return;
+        }
+
+        CompletableFuture<T> pending;
+        try {
+            pending = call.get();
+        } catch (RuntimeException e) {
+            limiter.release();
+            result.completeExceptionally(e);
+            return;
+        }
+
+        pending.whenComplete((resp, err) -> {
+            limiter.release();
+            if (err == null) {
+                limiter.onSuccess();
+                result.complete(resp);
+                return;
+            }
+
+            Throwable cause = unwrap(err);
+            boolean throttled = isThrottling(cause);
+            if (!throttled && !isTransient(cause)) {
+                result.completeExceptionally(cause);
+                return;
+            }
+
+            // solo il throttling abbassa il limite: un 5xx o un errore di rete non dicono che siamo troppi
+            if (throttled) limiter.onThrottle();
+            if (retry >= maxRetries) {
+                log.warn("Textract fallito dopo {} tentativi: {}", retry + 1, cause.toString());
+                result.completeExceptionally(cause);
+                return;
+            }
+
+            long backoff = backoffMs(retry);
+            log.debug("Errore Textract ritentabile ({}): limite {}, nuovo tentativo tra {} ms",
+                    throttled ? "throttling" : "transitorio", limiter.limit(), backoff);
+            CompletableFuture.runAsync(() -> attempt(call, retry + 1, result),
+                    CompletableFuture.delayedExecutor(backoff, TimeUnit.MILLISECONDS, retryExecutor));
+        });
+    }
+
+    private static long backoffMs(int retry) {
+        long exp = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(retry, 10));
+        return exp / 2 + ThreadLocalRandom.current().nextLong(exp / 2 + 1);
+    }
+
+    private static boolean isThrottling(Throwable t) {
+        return t instanceof ProvisionedThroughputExceededException
+                || t instanceof ThrottlingException
+                || (t instanceof SdkServiceException se && se.isThrottlingException());
+    }
+
+    // gli stessi errori che l'SDK ritenterebbe: 5xx, eccezioni dichiarate retryable, errori lato client (rete, timeout)
+    private static boolean isTransient(Throwable t) {
+        if (t instanceof SdkServiceException se) return se.retryable() || se.statusCode() >= 500;
+        return t instanceof SdkClientException;
+    }
+
+    static Throwable unwrap(Throwable t) {
+        while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t;
+    }
+}
@@ -0,0 +1,219 @@
+package it.piero.notiva.service.implementation;
+
+import software.amazon.awssdk.services.textract.model.Block;
+import software.amazon.awssdk.services.textract.model.BlockType;
+import software.amazon.awssdk.services.textract.model.Relationship;
+import software.amazon.awssdk.services.textract.model.RelationshipType;
+import software.amazon.awssdk.services.textract.model.SelectionStatus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Indice di una risposta Textract costruito una volta sola: blocchi per tipo, figli CHILD in array
+// compatti (CSR) e testo dei figli memorizzato, così la conversione in DocUnit non riscandisce la lista.
+final class TextractBlockIndex {
+
+    private static final int[] EMPTY = new int[0];
+
+    private static final Set<BlockType> LAYOUT_TYPES = Set.of(
+            BlockType.LAYOUT_TEXT,
+            BlockType.LAYOUT_TITLE,
+            BlockType.LAYOUT_SECTION_HEADER,
+            BlockType.LAYOUT_TABLE,
+            BlockType.LAYOUT_LIST,
+            BlockType.LAYOUT_HEADER,
+            BlockType.LAYOUT_FOOTER
+    );
+
+    private final Block[] blocks;
+    private final Map<BlockType, int[]> byType;
+    // figli del blocco i: childIdx[childStart[i] .. childStart[i + 1])
+    private final int[] childStart;
+    private final int[] childIdx;
+    private final boolean[] hasChildRel;
+    private final String[] textMemo;
+    private final Map<Integer, int[]> cellsMemo = new HashMap<>();
+
+    private TextractBlockIndex(Block[] blocks, Map<BlockType, int[]> byType,
+                               int[] childStart, int[] childIdx, boolean[] hasChildRel) {
+        this.blocks = blocks;
+        this.byType = byType;
+        this.childStart = childStart;
+        this.childIdx = childIdx;
+        this.hasChildRel = hasChildRel;
+        this.textMemo = new String[blocks.length];
+    }
+
+    static TextractBlockIndex of(List<Block> list) {
+        int n = list.size();
+        Block[] blocks = list.toArray(new Block[0]);
+        Map<String, Integer> pos = new HashMap<>(n * 2);
+        Map<BlockType, int[]> buckets = new EnumMap<>(BlockType.class);
+        int[] bucketSize = new int[BlockType.values().length];
+        int childCount = 0;
+
+        for (int i = 0; i < n; i++) {
+            Block b = blocks[i];
+            pos.put(b.id(), i);
+            BlockType t = b.blockType();
+            if (t != null) {
+                int[] bucket = buckets.get(t);
+                int k = bucketSize[t.ordinal()]++;
+                if (bucket == null || k == bucket.length) {
+                    bucket = bucket == null ? new int[8] : Arrays.copyOf(bucket, bucket.length * 2);
+                    buckets.put(t, bucket);
+                }
+                bucket[k] = i;
+            }
+            if (b.relationships() != null) {
+                for (Relationship r : b.relationships()) {
+                    if (r.type() == RelationshipType.CHILD && r.ids() != null) childCount += r.ids().size();
+                }
+            }
+        }
+        buckets.replaceAll((t, bucket) -> Arrays.copyOf(bucket, bucketSize[t.ordinal()]));
+
+        // gli id dei figli possono puntare a blocchi successivi: si risolvono dopo aver numerato tutto
+        int[] childStart = new int[n + 1];
+        int[] childIdx = new int[childCount];
+        boolean[] hasChildRel = new boolean[n];
+        int c = 0;
+        for (int i = 0; i < n; i++) {
+            childStart[i] = c;
+            List<Relationship> rels = blocks[i].relationships();
+            if (rels == null) continue;
+            for (Relationship r : rels) {
+                if (r.type() != RelationshipType.CHILD || r.ids() == null) continue;
+                hasChildRel[i] = true;
+                for (String id : r.ids()) {
+                    Integer j = pos.get(id);
+                    if (j != null) childIdx[c++] = j;
+                }
+            }
+        }
+        childStart[n] = c;
+
+        return new TextractBlockIndex(blocks, buckets, childStart, childIdx, hasChildRel);
+    }
+
+    Block block(int i) {
+        return blocks[i];
+    }
+
+    int[] ofType(BlockType type) {
+        return byType.getOrDefault(type, EMPTY);
+    }
+
+    // indici dei blocchi dei tipi dati, nell'ordine originale della risposta
+    int[] ofTypes(Set<BlockType> types) {
+        int size = 0;
+        for (BlockType t : types) size += ofType(t).length;
+        int[] out = new int[size];
+        int k = 0;
+        for (BlockType t : types) {
+            int[] bucket = ofType(t);
+            System.arraycopy(bucket, 0, out, k, bucket.length);
+            k += bucket.length;
+        }
+        Arrays.sort(out);
+        return out;
+    }
+
+    boolean hasLayout() {
+        for (BlockType t : LAYOUT_TYPES) {
+            if (ofType(t).length > 0) return true;
+        }
+        return false;
+    }
+
+    // testo del blocco ricostruito dai figli: LINE una per riga, altrimenti WORD/selezioni concatenate
+    String childText(int i) {
+        String memo = textMemo[i];
+        if (memo != null) return memo;
+
+        String text = buildChildText(i);
+        textMemo[i] = text;
+        return text;
+    }
+
+    private String buildChildText(int i) {
+        Block parent = blocks[i];
+        int from = childStart[i], to = childStart[i + 1];
+
+        List<String> lines = new ArrayList<>();
+        if (hasChildRel[i]) {
+            boolean anyLine = false;
+            for (int c = from; c < to; c++) {
+                Block b = blocks[childIdx[c]];
+                if (b.blockType() != BlockType.LINE) continue;
+                anyLine = true;
+                String t = fixSymbols(b.text());
+                if (t != null && !t.isBlank()) lines.add(t);
+            }
+
+            if (!anyLine) {
+                StringBuilder buf = new StringBuilder();
+                for (int c = from; c < to; c++) {
+                    int j = childIdx[c];
+                    Block b = blocks[j];
+                    if (b.blockType() == BlockType.WORD) {
+                        String w = fixSymbols(b.text());
+                        if (w != null) buf.append(w).append(' ');
+                    } else if (b.blockType() == BlockType.SELECTION_ELEMENT) {
+                        buf.append(b.selectionStatus() == SelectionStatus.SELECTED ? "☒" : "☐").append(' ');
+                    } else {
+                        String deep = childText(j);
+                        if (!deep.isBlank()) {
+                            if (buf.length() > 0) buf.append(' ');
+                            buf.append(deep);
+                        }
+                    }
+                }
+                String t = buf.toString().trim();
+                if (!t.isBlank()) lines.add(t);
+            }
+        }
+
+        if (lines.isEmpty()) {
+            String t = fixSymbols(parent.text());
+            return t == null ? "" : t.trim();
+        }
+        return String.join("\n", lines).trim();
+    }
+
+    // indici delle celle della tabella, incluse quelle raggiunte attraverso MERGED_CELL
+    int[] tableCells(int table) {
+        int[] memo = cellsMemo.get(table);
+        if (memo != null) return memo;
+
+        int[] cells = new int[8];
+        int k = 0;
+        for (int c = childStart[table]; c < childStart[table + 1]; c++) {
+            int j = childIdx[c];
+            BlockType t = blocks[j].blockType();
+            if (t == BlockType.CELL) {
+                if (k == cells.length) cells = Arrays.copyOf(cells, k * 2);
+                cells[k++] = j;
+            } else if (t == BlockType.MERGED_CELL) {
+                for (int m = childStart[j]; m < childStart[j + 1]; m++) {
+                    if (blocks[childIdx[m]].blockType() != BlockType.CELL) continue;
+                    if (k == cells.length) cells = Arrays.copyOf(cells, k * 2);
+                    cells[k++] = childIdx[m];
+                }
+            }
+        }
+        cells = Arrays.copyOf(cells, k);
+        cellsMemo.put(table, cells);
+        return cells;
+    }
+
+    static String fixSymbols(String s) {
+        if (s == null) return null;
+        return s.replace('�', '€');
+    }
+}
@@ -0,0 +1,157 @@
+package it.piero.notiva.service.implementation;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.piero.notiva.utils.TieredCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.services.textract.model.Block;
+import software.amazon.awssdk.services.textract.model.BoundingBox;
+import software.amazon.awssdk.services.textract.model.Geometry;
+import software.amazon.awssdk.services.textract.model.Relationship;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Cache dei blocchi Textract per contenuto: stessa immagine di pagina + stesse feature = stessa risposta
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "notiva.textract.cache", name = "enabled", havingValue = "true", matchIfMissing = true)
+public class TextractResponseCache {
+
+    // da incrementare se cambia il formato su disco: le vecchie voci diventano semplicemente miss
+    private static final String FORMAT_VERSION = "1";
+
+    private final TieredCache<List<Block>> cache;
+
+    public TextractResponseCache(@Value("${notiva.textract.cache.memoryEntries:256}") int memoryEntries,
+                                 @Value("${notiva.textract.cache.dir:}") String dir,
+                                 @Value("${notiva.textract.cache.maxDiskBytes:1073741824}") long maxDiskBytes) {
+        Path diskDir = dir == null || dir.isBlank() ? null : Path.of(dir);
+        this.cache = new TieredCache<>("textract", memoryEntries, diskDir, maxDiskBytes, new BlockCodec());
+    }
+
+    public String key(byte[] pageBytes, String features) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update((FORMAT_VERSION + "|" + features + "|").getBytes(StandardCharsets.UTF_8));
+            sha.update(pageBytes);
+            return HexFormat.of().formatHex(sha.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 non disponibile", e);
+        }
+    }
+
+    public List<Block> get(String key) {
+        return cache.get(key);
+    }
+
+    public void put(String key, List<Block> blocks) {
+        cache.put(key, blocks);
+    }
+
+    public TieredCache.Stats stats() {
+        return cache.stats();
+    }
+
+    // forma ridotta del blocco: solo i campi letti dal servizio
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    record CachedBlock(String id, String type, String text, Integer page, Float confidence,
+                       Integer row, Integer col, String selection, float[] bbox, List<CachedRel> rels) {}
+
+    record CachedRel(String type, List<String> ids) {}
+
+    static final class BlockCodec implements TieredCache.Codec<List<Block>> {
+
+        private static final ObjectMapper MAPPER = new ObjectMapper();
+        private static final TypeReference<List<CachedBlock>> TYPE = new TypeReference<>() {};
+
+        @Override
+        public byte[] encode(List<Block> blocks) throws IOException {
+            List<CachedBlock> out = new ArrayList<>(blocks.size());
+            for (Block b : blocks) {
+                out.add(toCached(b));
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (OutputStream gz = new GZIPOutputStream(bytes)) {
+                MAPPER.writeValue(gz, out);
+            }
+            return bytes.toByteArray();
+        }
+
+        @Override
+        public List<Block> decode(byte[] bytes) throws IOException {
+            List<CachedBlock> in;
+            try (InputStream gz = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+                in = MAPPER.readValue(gz, TYPE);
+            }
+            List<Block> out = new ArrayList<>(in.size());
+            for (CachedBlock c : in) {
+                out.add(fromCached(c));
+            }
+            return out;
+        }
+
+        private static CachedBlock toCached(Block b) {
+            float[] bbox = null;
+            if (b.geometry() != null && b.geometry().boundingBox() != null) {
+                BoundingBox bb = b.geometry().boundingBox();
+                bbox = new float[]{bb.left(), bb.top(), bb.width(), bb.height()};
+            }
+            List<CachedRel> rels = null;
+            if (b.relationships() != null && !b.relationships().isEmpty()) {
+                rels = new ArrayList<>(b.relationships().size());
+                for (Relationship r : b.relationships()) {
+                    rels.add(new CachedRel(r.typeAsString(), r.ids()));
+                }
+            }
+            return new CachedBlock(b.id(), b.blockTypeAsString(), b.text(), b.page(), b.confidence(),
+                    b.rowIndex(), b.columnIndex(), b.selectionStatusAsString(), bbox, rels);
+        }
+
+        private static Block fromCached(CachedBlock c) {
+            Block.Builder b = Block.builder()
+                    .id(c.id())
+                    .blockType(c.type())
+                    .text(c.text())
+                    .page(c.page())
+                    .confidence(c.confidence())
+                    .rowIndex(c.row())
+                    .columnIndex(c.col())
+                    .selectionStatus(c.selection());
+            if (c.bbox() != null) {
+                b.geometry(Geometry.builder()
+                        .boundingBox(BoundingBox.builder()
+                                .left(c.bbox()[0])
+                                .top(c.bbox()[1])
+                                .width(c.bbox()[2])
+                                .height(c.bbox()[3])
+                                .build())
+                        .build());
+            }
+            if (c.rels() != null) {
+                List<Relationship> rels = new ArrayList<>(c.rels().size());
+                for (CachedRel r : c.rels()) {
+                    rels.add(Relationship.builder().type(r.type()).ids(r.ids()).build());
+                }
+                b.relationships(rels);
+            }
+            return b.build();
+        }
+    }
+}
@@ -1,89 +1,214 @@
 package it.piero.notiva.service.implementation;
 
-import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import it.piero.notiva.model.BBox;
+import it.piero.notiva.model.DocAnalysis;
 import it.piero.notiva.model.DocUnit;
 import it.piero.notiva.model.Region;
 import it.piero.notiva.service.definition.TextractService;
+import it.piero.notiva.utils.PageTriageUtils;
+import it.piero.notiva.utils.PdfPageStream;
+import it.piero.notiva.utils.PdfSource;
+import it.piero.notiva.utils.PdfTextLayerUtils;
 import it.piero.notiva.utils.PdfUtils;
+import it.piero.notiva.utils.TieredCache;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 import software.amazon.awssdk.core.SdkBytes;
 import software.amazon.awssdk.services.textract.TextractClient;
 import software.amazon.awssdk.services.textract.model.*;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.StringReader;
 import java.util.*;
-import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 @Slf4j
 @Service
 public class TextractServiceImpl implements TextractService {
 
     private final TextractClient textractClient;
+    private final TextractAsyncDispatcher asyncDispatcher;
+    private final TextractResponseCache responseCache;
     private final PdfUtils pdfUtils;
+    private final PdfTextLayerUtils pdfTextLayerUtils;
+    private final PageTriageUtils pageTriageUtils;
+    private final OcrTierPolicy ocrTierPolicy;
+    private final int pageWindow;
+    // le escalation ad AnalyzeDocument partono da callback del client asincrono: acquisire lo slot lì lo bloccherebbe
+    private final ExecutorService escalationExecutor = Executors.newVirtualThreadPerTaskExecutor();
 
     private static final double LINE_COVERAGE_THRESHOLD = 0.20;
 
-    private static final ObjectMapper MAPPER = new ObjectMapper()
-            .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+    // parte della chiave di cache: cambia se cambiano le feature richieste
+    private static final String ANALYZE_FEATURES = "analyze:TABLES,LAYOUT";
+    private static final String DETECT_FEATURES = "detect";
 
-    public TextractServiceImpl(TextractClient textractClient, PdfUtils pdfUtils) {
+    // LineLayoutText non è thread-safe e i testi di pagina si compongono nei callback del client asincrono:
+    // un'istanza per thread, con i buffer riusati tra le pagine
+    private static final ThreadLocal<LineLayoutText> LAYOUT = ThreadLocal.withInitial(LineLayoutText::new);
+
+    public TextractServiceImpl(TextractClient textractClient, ObjectProvider<TextractAsyncDispatcher> asyncDispatcher,
+                               ObjectProvider<TextractResponseCache> responseCache, PdfUtils pdfUtils, PdfTextLayerUtils pdfTextLayerUtils, PageTriageUtils pageTriageUtils,
+                               OcrTierPolicy ocrTierPolicy,
+                               @Value("${notiva.pdf.pageWindow:4}") int pageWindow) {
         this.textractClient = textractClient;
+        this.asyncDispatcher = asyncDispatcher.getIfAvailable();
+        this.responseCache = responseCache.getIfAvailable();
         this.pdfUtils = pdfUtils;
+        this.pdfTextLayerUtils = pdfTextLayerUtils;
+        this.pageTriageUtils = pageTriageUtils;
+        this.ocrTierPolicy = ocrTierPolicy;
+        this.pageWindow = pageWindow;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        escalationExecutor.shutdownNow();
     }
 
     @Override
     public List<DocUnit> analyze(List<MultipartFile> files) throws IOException {
-        log.info("Avvio analisi documentale ({} file)", files.size());
         List<DocUnit> docUnits = new ArrayList<>();
+        analyze(files, docUnits::addAll);
+        return docUnits;
+    }
 
-        ObjectMapper mapper = new ObjectMapper();
-
-        for (MultipartFile fileItem : files) {
+    // le unità arrivano al sink pagina per pagina, in ordine, appena la pagina e le precedenti sono pronte
+    @Override
+    public void analyze(List<MultipartFile> files, Consumer<List<DocUnit>> pageSink) throws IOException {
+        processPages(files, false, page -> pageSink.accept(page.units()));
+    }
 
-            List<byte[]> bytes = pdfUtils.renderPdfToImages(fileItem.getBytes(), 300);
+    // un solo rendering e una sola chiamata Textract per pagina, da cui si ricavano unità e testo
+    @Override
+    public DocAnalysis analyzeAll(List<MultipartFile> files, boolean withUnits, boolean withText) throws IOException {
+        List<DocUnit> docUnits = withUnits ? new ArrayList<>() : null;
+        StringBuilder textOut = withText ? new StringBuilder() : null;
+
+        processPages(files, withText, page -> {
+            if (docUnits != null) docUnits.addAll(page.units());
+            if (textOut != null) textOut.append(page.text()).append("\n\n");
+        });
+
+        return DocAnalysis.builder()
+                .docUnits(docUnits)
+                .text(textOut == null ? null : textOut.toString().trim())
+                .build();
+    }
 
-            int pageNumber = 1;
-            String origin = fileItem.getOriginalFilename();
+    private record PageResult(List<DocUnit> units, String text) {
 
-            for (byte[] pageBytes : bytes) {
+        PageResult onPage(int pageNumber) {
+            return new PageResult(PageTriageUtils.withPage(units, pageNumber), text);
+        }
+    }
 
+    private void processPages(List<MultipartFile> files, boolean withText, Consumer<PageResult> pageSink) throws IOException {
+        log.info("Avvio analisi documentale ({} file)", files.size());
 
-                Document document = Document.builder()
-                        .bytes(SdkBytes.fromByteArray(pageBytes))
-                        .build();
+        // una future per pagina, in ordine: con il client asincrono le pagine di tutti i file sono in volo insieme,
+        // e quelle già concluse in testa passano al sink mentre si renderizzano le successive
+        InOrder<PageResult> pagesInOrder = new InOrder<>(pageSink);
+        AtomicInteger ocrPages = new AtomicInteger();
+        AtomicInteger escalated = new AtomicInteger();
 
-                AnalyzeDocumentRequest req = AnalyzeDocumentRequest.builder()
-                        .document(document)
-                        .featureTypes(FeatureType.TABLES, FeatureType.LAYOUT)
-                        .build();
+        for (MultipartFile fileItem : files) {
 
-                AnalyzeDocumentResponse resp = textractClient.analyzeDocument(req);
+            String origin = fileItem.getOriginalFilename();
 
-                String jsonl = toJsonl(resp,pageNumber,origin);
+            try (PdfSource source = pdfUtils.source(fileItem)) {
+                PdfTextLayerUtils.TextLayer textLayer = pdfTextLayerUtils.extract(source, origin);
+                // pagine dal text layer in attesa del loro turno tra quelle OCR
+                TreeMap<Integer, CompletableFuture<PageResult>> textLayerPages = new TreeMap<>();
+                textLayer.unitsByPage().forEach((pageNumber, units) ->
+                        textLayerPages.put(pageNumber, CompletableFuture.completedFuture(
+                                new PageResult(units, withText ? textOfUnits(units) : null))));
+
+                if (textLayer.ocrPageIndexes().length > 0) {
+                    try (PdfPageStream pages = pdfUtils.openPageStream(source, 300, pageWindow, textLayer.ocrPageIndexes())) {
+                        PageTriageUtils.Session<CompletableFuture<PageResult>> triage = pageTriageUtils.newSession();
+                        while (pages.hasNext()) {
+                            PdfUtils.RenderedPage page = pages.next();
+                            int pageNumber = page.pageNumber();
+
+                            pagesInOrder.addAll(textLayerPages.headMap(pageNumber).values());
+                            textLayerPages.headMap(pageNumber).clear();
+
+                            PageTriageUtils.Verdict verdict = triage.classify(page);
+                            if (verdict.kind() == PageTriageUtils.Kind.BLANK) {
+                                pagesInOrder.drainReady();
+                                continue;
+                            }
+                            if (verdict.kind() == PageTriageUtils.Kind.DUPLICATE) {
+                                pagesInOrder.add(triage.result(verdict.duplicateOf())
+                                        .thenApply(result -> result.onPage(pageNumber)));
+                                continue;
+                            }
 
-                try (BufferedReader reader = new BufferedReader(new StringReader(jsonl))) {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        if (line.isBlank()) continue;
-                        DocUnit docUnit = mapper.readValue(line, DocUnit.class);
-                        docUnits.add(docUnit);
+                            CompletableFuture<List<Block>> blocks = ocrTierPolicy.isEnabled()
+                                    ? tieredBlocks(page.bytes(), pageNumber, escalated)
+                                    : analyzeDocument(page.bytes()).thenApply(AnalyzeDocumentResponse::blocks);
+                            CompletableFuture<PageResult> result = blocks.thenApply(b -> new PageResult(
+                                    toDocUnits(b, pageNumber, origin),
+                                    withText ? LAYOUT.get().render(b) : null));
+                            ocrPages.incrementAndGet();
+                            triage.record(page, result);
+                            pagesInOrder.add(result);
+                        }
                     }
                 }
 
-                pageNumber++;
+                pagesInOrder.addAll(textLayerPages.values());
             }
         }
 
+        pagesInOrder.drainAll();
+
+        if (ocrTierPolicy.isEnabled()) {
+            log.info("OCR a livelli: {} pagine su {} inviate ad AnalyzeDocument", escalated.get(), ocrPages.get());
+        }
         log.info("Analisi documentale terminata");
+    }
 
-        return docUnits;
+    // coda in ordine di pagina: il sink riceve la testa appena è conclusa, senza aspettare le pagine dopo
+    private static final class InOrder<T> {
+
+        private final ArrayDeque<CompletableFuture<T>> queue = new ArrayDeque<>();
+        private final Consumer<T> sink;
+
+        InOrder(Consumer<T> sink) {
+            this.sink = sink;
+        }
+
+        void add(CompletableFuture<T> page) throws IOException {
+            queue.add(page);
+            drainReady();
+        }
+
+        void addAll(Collection<CompletableFuture<T>> pages) throws IOException {
+            queue.addAll(pages);
+            drainReady();
+        }
+
+        void drainReady() throws IOException {
+            while (!queue.isEmpty() && queue.peek().isDone()) {
+                sink.accept(await(queue.poll()));
+            }
+        }
+
+        void drainAll() throws IOException {
+            while (!queue.isEmpty()) {
+                sink.accept(await(queue.poll()));
+            }
+        }
     }
 
     @Override
@@ -95,7 +220,7 @@ public class TextractServiceImpl implements TextractService {
             return "";
         }
 
-        StringBuilder textOut = new StringBuilder();
+        List<CompletableFuture<String>> pagesInOrder = new ArrayList<>();
 
         for (MultipartFile fileItem : files) {
             if (fileItem == null || fileItem.isEmpty()) {
@@ -103,274 +228,262 @@ public class TextractServiceImpl implements TextractService {
                 continue;
             }
 
-            List<byte[]> pages = pdfUtils.renderPdfToImages(fileItem.getBytes(), 300);
-
-            for (int i = 0; i < pages.size(); i++) {
-                int pageNumber = i + 1;
-                byte[] pageBytes = pages.get(i);
-
-                Document document = Document.builder()
-                        .bytes(SdkBytes.fromByteArray(pageBytes))
-                        .build();
-
-                DetectDocumentTextRequest req = DetectDocumentTextRequest.builder()
-                        .document(document)
-                        .build();
-
-                DetectDocumentTextResponse resp = textractClient.detectDocumentText(req);
-
-                List<Block> lines = resp.blocks().stream()
-                        .filter(b -> b.blockType() == BlockType.LINE)
-                        .filter(b -> b.geometry() != null && b.geometry().boundingBox() != null)
-                        .sorted(Comparator
-                                .comparing((Block b) -> b.geometry().boundingBox().top())
-                                .thenComparing(b -> b.geometry().boundingBox().left()))
-                        .collect(Collectors.toList());
-
-                final float yTol = 0.012f;
-                final float minGap = 0.06f;
-                final int   labelMaxLen = 48;
-
-                List<List<Block>> rows = new ArrayList<>();
-                for (Block b : lines) {
-                    float top = b.geometry().boundingBox().top();
-                    if (rows.isEmpty()) {
-                        rows.add(new ArrayList<>(Arrays.asList(b)));
-                        continue;
-                    }
-                    List<Block> last = rows.get(rows.size() - 1);
-                    float lastTop = last.get(0).geometry().boundingBox().top();
-                    if (Math.abs(top - lastTop) <= yTol) {
-                        last.add(b);
-                    } else {
-                        last.sort(Comparator.comparing(x -> x.geometry().boundingBox().left()));
-                        rows.add(new ArrayList<>(Arrays.asList(b)));
-                    }
-                }
-                if (!rows.isEmpty()) {
-                    List<Block> last = rows.get(rows.size() - 1);
-                    last.sort(Comparator.comparing(x -> x.geometry().boundingBox().left()));
-                }
-
-                StringBuilder pageOut = new StringBuilder();
-                for (List<Block> row : rows) {
-                    if (row == null || row.isEmpty()) continue;
-
-                    List<Cell> cells = new ArrayList<>(row.size());
-                    for (Block b : row) {
-                        String t = b.text() == null ? "" : b.text().trim();
-                        if (t.isEmpty()) continue;
-                        BoundingBox bb = b.geometry().boundingBox();
-                        float left = bb.left();
-                        float right = bb.left() + bb.width();
-                        cells.add(new Cell(t, left, right));
-                    }
-                    if (cells.isEmpty()) continue;
-
-                    if (cells.size() == 1) {
-                        pageOut.append(cells.get(0).t).append("\n");
-                        continue;
-                    }
+            String origin = fileItem.getOriginalFilename();
 
-                    List<Cell> merged = new ArrayList<>();
-                    Cell acc = cells.get(0);
-                    for (int c = 1; c < cells.size(); c++) {
-                        Cell nxt = cells.get(c);
-                        if (nxt.left - acc.right < minGap) {
-                            acc = new Cell(
-                                    (acc.t + " " + nxt.t).replaceAll("\\s+", " ").trim(),
-                                    acc.left,
-                                    Math.max(acc.right, nxt.right)
-                            );
-                        } else {
-                            merged.add(acc);
-                            acc = nxt;
-                        }
-                    }
-                    merged.add(acc);
-                    cells = merged;
-
-                    if (cells.size() >= 2) {
-                        Cell first = cells.get(0);
-                        Cell second = cells.get(1);
-
-                        boolean spaced   = (second.left - first.right) >= minGap;
-                        boolean labelish = looksLikeLabel(first.t, labelMaxLen);
-                        boolean valueish = looksLikeValue(second.t);
-
-                        if (spaced && (labelish || !valueish)) {
-                            StringBuilder rowOut = new StringBuilder();
-                            rowOut.append(stripTrailingColon(first.t)).append(": ").append(second.t);
-                            for (int c = 2; c < cells.size(); c++) {
-                                rowOut.append(" ").append(cells.get(c).t);
+            try (PdfSource source = pdfUtils.source(fileItem)) {
+                // come processPages: le pagine native non si renderizzano né vanno a Textract
+                PdfTextLayerUtils.TextLayer textLayer = pdfTextLayerUtils.extract(source, origin);
+                TreeMap<Integer, CompletableFuture<String>> textLayerPages = new TreeMap<>();
+                textLayer.unitsByPage().forEach((pageNumber, units) ->
+                        textLayerPages.put(pageNumber, CompletableFuture.completedFuture(textOfUnits(units))));
+
+                if (textLayer.ocrPageIndexes().length > 0) {
+                    try (PdfPageStream pages = pdfUtils.openPageStream(source, 300, pageWindow, textLayer.ocrPageIndexes())) {
+                        PageTriageUtils.Session<CompletableFuture<String>> triage = pageTriageUtils.newSession();
+                        while (pages.hasNext()) {
+                            PdfUtils.RenderedPage page = pages.next();
+                            int pageNumber = page.pageNumber();
+
+                            pagesInOrder.addAll(textLayerPages.headMap(pageNumber).values());
+                            textLayerPages.headMap(pageNumber).clear();
+
+                            PageTriageUtils.Verdict verdict = triage.classify(page);
+                            if (verdict.kind() == PageTriageUtils.Kind.BLANK) continue;
+                            if (verdict.kind() == PageTriageUtils.Kind.DUPLICATE) {
+                                pagesInOrder.add(triage.result(verdict.duplicateOf()));
+                                continue;
                             }
-                            pageOut.append(rowOut.toString().replaceAll("\\s+", " ").trim()).append("\n");
-                            continue;
+
+                            CompletableFuture<String> pageText = detectDocumentText(page.bytes())
+                                    .thenApply(resp -> pageText(resp, pageNumber));
+                            triage.record(page, pageText);
+                            pagesInOrder.add(pageText);
                         }
                     }
-
-                    String joined = cells.stream().map(c -> c.t)
-                            .collect(Collectors.joining(" "));
-                    pageOut.append(joined.replaceAll("\\s+", " ").trim()).append("\n");
                 }
 
-                textOut.append(pageOut.toString().trim()).append("\n\n");
-                log.debug("Pagina {}: linee={}", pageNumber, lines.size());
+                pagesInOrder.addAll(textLayerPages.values());
             }
         }
 
+        StringBuilder textOut = new StringBuilder();
+        for (CompletableFuture<String> page : pagesInOrder) {
+            textOut.append(await(page)).append("\n\n");
+        }
+
         log.info("Analisi documentale terminata. Tot caratteri: {}", textOut.length());
         return textOut.toString().trim();
     }
 
-    private static class Cell {
-        final String t;
-        final float left;
-        final float right;
-        Cell(String t, float left, float right) {
-            this.t = t;
-            this.left = left;
-            this.right = right;
+    // prima DetectDocumentText; AnalyzeDocument solo se le LINE fanno pensare a tabelle o colonne
+    private CompletableFuture<List<Block>> tieredBlocks(byte[] pageBytes, int pageNumber, AtomicInteger escalated) {
+        return detectDocumentText(pageBytes).thenComposeAsync(detected -> {
+            if (!ocrTierPolicy.needsFullAnalysis(detected.blocks())) {
+                return CompletableFuture.completedFuture(detected.blocks());
+            }
+            log.debug("Pagina {}: layout complesso, passo ad AnalyzeDocument", pageNumber);
+            escalated.incrementAndGet();
+            return analyzeDocument(pageBytes).thenApply(AnalyzeDocumentResponse::blocks);
+        }, escalationExecutor);
+    }
+
+    // pagine dal text layer: le linee native passano dallo stesso motore di impaginazione delle LINE Textract
+    private static String textOfUnits(List<DocUnit> units) {
+        List<Block> lines = new ArrayList<>(units.size());
+        for (DocUnit u : units) {
+            BBox box = u.getBbox();
+            if (u.getText() == null || box == null) continue;
+            lines.add(Block.builder()
+                    .blockType(BlockType.LINE)
+                    .text(u.getText())
+                    .geometry(Geometry.builder()
+                            .boundingBox(BoundingBox.builder()
+                                    .left(box.getLeft())
+                                    .top(box.getTop())
+                                    .width(box.getWidth())
+                                    .height(box.getHeight())
+                                    .build())
+                            .build())
+                    .build());
         }
+        return LAYOUT.get().render(lines);
     }
 
-    static boolean looksLikeLabel(String s, int maxLen) {
-        if (s == null) return false;
-        String t = s.trim();
-        if (t.isEmpty()) return false;
-        if (t.endsWith(":")) return true;
-        if (t.length() <= 3) return true;
-        if (t.length() <= maxLen && t.equals(t.toUpperCase())) return true;
-        return !t.matches(".*\\d.*");
+    private String pageText(DetectDocumentTextResponse resp, int pageNumber) {
+        String text = LAYOUT.get().render(resp.blocks());
+        log.debug("Pagina {}: {} caratteri", pageNumber, text.length());
+        return text;
     }
 
-    static boolean looksLikeValue(String s) {
-        if (s == null) return false;
-        String t = s.trim();
-        if (t.isEmpty()) return false;
-        if (t.contains("€")) return true;
-        if (t.matches(".*\\d.*")) return true;
-        return t.split("\\s+").length > 1 && !t.equals(t.toUpperCase());
+    private CompletableFuture<AnalyzeDocumentResponse> analyzeDocument(byte[] pageBytes) {
+        String key = responseCache == null ? null : responseCache.key(pageBytes, ANALYZE_FEATURES);
+        List<Block> cached = key == null ? null : responseCache.get(key);
+        if (cached != null) {
+            log.debug("Risposta AnalyzeDocument dalla cache {}", key);
+            return CompletableFuture.completedFuture(AnalyzeDocumentResponse.builder().blocks(cached).build());
+        }
+
+        AnalyzeDocumentRequest req = AnalyzeDocumentRequest.builder()
+                .document(toDocument(pageBytes))
+                .featureTypes(FeatureType.TABLES, FeatureType.LAYOUT)
+                .build();
+        CompletableFuture<AnalyzeDocumentResponse> call = asyncDispatcher != null
+                ? asyncDispatcher.analyzeDocument(req)
+                : CompletableFuture.completedFuture(textractClient.analyzeDocument(req));
+        if (key == null) return call;
+        return call.thenApply(resp -> {
+            responseCache.put(key, resp.blocks());
+            return resp;
+        });
     }
 
-    static String stripTrailingColon(String s) {
-        if (s == null) return "";
-        return s.endsWith(":") ? s.substring(0, s.length() - 1).trim() : s.trim();
+    private CompletableFuture<DetectDocumentTextResponse> detectDocumentText(byte[] pageBytes) {
+        String key = responseCache == null ? null : responseCache.key(pageBytes, DETECT_FEATURES);
+        List<Block> cached = key == null ? null : responseCache.get(key);
+        if (cached != null) {
+            log.debug("Risposta DetectDocumentText dalla cache {}", key);
+            return CompletableFuture.completedFuture(DetectDocumentTextResponse.builder().blocks(cached).build());
+        }
+
+        DetectDocumentTextRequest req = DetectDocumentTextRequest.builder()
+                .document(toDocument(pageBytes))
+                .build();
+        CompletableFuture<DetectDocumentTextResponse> call = asyncDispatcher != null
+                ? asyncDispatcher.detectDocumentText(req)
+                : CompletableFuture.completedFuture(textractClient.detectDocumentText(req));
+        if (key == null) return call;
+        return call.thenApply(resp -> {
+            responseCache.put(key, resp.blocks());
+            return resp;
+        });
     }
 
+    @Override
+    public TieredCache.Stats cacheStats() {
+        return responseCache == null ? null : responseCache.stats();
+    }
 
-    private String toJsonl(AnalyzeDocumentResponse response, int page, String origin) {
-        StringBuilder out = new StringBuilder();
+    private static Document toDocument(byte[] pageBytes) {
+        return Document.builder()
+                .bytes(SdkBytes.fromByteArray(pageBytes))
+                .build();
+    }
 
-        Map<String, Block> byId = response.blocks().stream()
-                .collect(Collectors.toMap(Block::id, Function.identity()));
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException | CancellationException e) {
+            Throwable cause = TextractAsyncDispatcher.unwrap(e);
+            if (cause instanceof IOException io) throw io;
+            if (cause instanceof RuntimeException re) throw re;
+            throw new IOException("Analisi Textract fallita", cause);
+        }
+    }
+
+    private static final Set<BlockType> FREE_TEXT_TYPES = Set.of(
+            BlockType.LAYOUT_TITLE,
+            BlockType.LAYOUT_SECTION_HEADER,
+            BlockType.LAYOUT_TEXT,
+            BlockType.LAYOUT_LIST,
+            BlockType.LAYOUT_HEADER,
+            BlockType.LAYOUT_FOOTER
+    );
+
+    // senza blocchi LAYOUT (es. risposta di DetectDocumentText) si usano direttamente le LINE
+    private List<DocUnit> toDocUnits(List<Block> blocks, int page, String origin) {
+        TextractBlockIndex index = TextractBlockIndex.of(blocks);
 
-        boolean hasLayout = hasLayout(response.blocks());
+        boolean hasLayout = index.hasLayout();
 
-        Map<Integer, List<BoundingBox>> tableAreasByPage =
+        TableAreaIndex tableAreasByPage = TableAreaIndex.of(
                 hasLayout
-                        ? buildLayoutBoxesByPage(response.blocks(), BlockType.LAYOUT_TABLE, page)
-                        : buildCellBoxesByPage(response.blocks(), byId, page);
+                        ? buildLayoutBoxesByPage(index, BlockType.LAYOUT_TABLE, page)
+                        : buildCellBoxesByPage(index, page));
 
         List<DocUnit> units = new ArrayList<>();
 
         if (hasLayout) {
-            Set<BlockType> freeTextTypes = Set.of(
-                    BlockType.LAYOUT_TITLE,
-                    BlockType.LAYOUT_SECTION_HEADER,
-                    BlockType.LAYOUT_TEXT,
-                    BlockType.LAYOUT_LIST,
-                    BlockType.LAYOUT_HEADER,
-                    BlockType.LAYOUT_FOOTER
-            );
-
-            response.blocks().stream()
-                    .filter(b -> freeTextTypes.contains(b.blockType()))
-                    .filter(b -> !isInsideAnyBox(b, tableAreasByPage, LINE_COVERAGE_THRESHOLD,page))
-                    .forEach(b -> {
-                        String text = getTextFromChildren(b, byId, true);
-                        if (text != null) text = text.trim();
-                        if (text != null && !text.isBlank()) {
-                            BBox box = BBox.of(bboxOf(b));
-                            Region region = classifyRegion(box);
-                            units.add(DocUnit.textUnit(
-                                    b.blockType().toString(),
-                                    b.page() == null ? page : b.page(),
-                                    box,
-                                    fixSymbols(text),
-                                    b.id(),
-                                    b.confidence(),
-                                    region,
-                                    origin
-                            ));
-                        }
-                    });
-        } else {
-            response.blocks().stream()
-                    .filter(b -> b.blockType() == BlockType.LINE)
-                    .filter(line -> !isInsideAnyBox(line, tableAreasByPage, LINE_COVERAGE_THRESHOLD,page))
-                    .forEach(b -> {
-                        String text = fixSymbols(b.text());
-                        if (text != null && !text.isBlank()) {
-                            BBox box = BBox.of(bboxOf(b));
-                            Region region = classifyRegion(box);
-                            units.add(DocUnit.textUnit(
-                                    "LINE",
-                                    b.page() == null ? page : b.page(),
-                                    box,
-                                    text.trim(),
-                                    b.id(),
-                                    b.confidence(),
-                                    region,
-                                    origin
-                            ));
-                        }
-                    });
-        }
-
-        response.blocks().stream()
-                .filter(b -> b.blockType() == BlockType.TABLE)
-                .forEach(table -> {
-                    List<Block> cells = getTableCells(table, byId);
+            for (int i : index.ofTypes(FREE_TEXT_TYPES)) {
+                Block b = index.block(i);
+                if (isInsideAnyBox(b, tableAreasByPage, LINE_COVERAGE_THRESHOLD, page)) continue;
 
-                    NavigableMap<Integer, List<Block>> rowsMap = new TreeMap<>();
-                    for (Block c : cells) {
-                        int r = c.rowIndex() == null ? 1 : c.rowIndex();
-                        rowsMap.computeIfAbsent(r, k -> new ArrayList<>()).add(c);
-                    }
-                    rowsMap.values().forEach(list ->
-                            list.sort(Comparator.comparing(c -> c.columnIndex() == null ? 1 : c.columnIndex()))
-                    );
-
-                    List<List<String>> rows = new ArrayList<>();
-                    for (List<Block> row : rowsMap.values()) {
-                        int maxCol = row.stream()
-                                .map(c -> c.columnIndex() == null ? 1 : c.columnIndex())
-                                .max(Integer::compareTo)
-                                .orElse(0);
-
-                        List<String> cols = new ArrayList<>(Collections.nCopies(Math.max(0, maxCol), null));
-                        for (Block c : row) {
-                            int colIdx = (c.columnIndex() == null ? 1 : c.columnIndex()) - 1;
-                            String val = getTextFromChildren(c, byId, true);
-                            if (val != null) val = val.trim();
-                            cols.set(colIdx, (val == null || val.isEmpty()) ? null : fixSymbols(val));
-                        }
-                        rows.add(cols);
-                    }
+                String text = index.childText(i);
+                if (!text.isBlank()) {
+                    BBox box = BBox.of(bboxOf(b));
+                    Region region = classifyRegion(box);
+                    units.add(DocUnit.textUnit(
+                            b.blockType().toString(),
+                            b.page() == null ? page : b.page(),
+                            box,
+                            text,
+                            b.id(),
+                            b.confidence(),
+                            region,
+                            origin
+                    ));
+                }
+            }
+        } else {
+            for (int i : index.ofType(BlockType.LINE)) {
+                Block b = index.block(i);
+                if (isInsideAnyBox(b, tableAreasByPage, LINE_COVERAGE_THRESHOLD, page)) continue;
 
-                    BBox box = BBox.of(bboxOf(table));
+                String text = TextractBlockIndex.fixSymbols(b.text());
+                if (text != null && !text.isBlank()) {
+                    BBox box = BBox.of(bboxOf(b));
                     Region region = classifyRegion(box);
-                    units.add(DocUnit.tableUnit(
-                            table.page() == null ? page : table.page(),
+                    units.add(DocUnit.textUnit(
+                            "LINE",
+                            b.page() == null ? page : b.page(),
                             box,
-                            rows,
-                            table.id(),
-                            table.confidence(),
+                            text.trim(),
+                            b.id(),
+                            b.confidence(),
                             region,
                             origin
                     ));
-                });
+                }
+            }
+        }
+
+        for (int t : index.ofType(BlockType.TABLE)) {
+            Block table = index.block(t);
+            int[] cells = index.tableCells(t);
+
+            NavigableMap<Integer, List<Integer>> rowsMap = new TreeMap<>();
+            for (int c : cells) {
+                Integer r = index.block(c).rowIndex();
+                rowsMap.computeIfAbsent(r == null ? 1 : r, k -> new ArrayList<>()).add(c);
+            }
+
+            List<List<String>> rows = new ArrayList<>(rowsMap.size());
+            for (List<Integer> row : rowsMap.values()) {
+                int maxCol = 0;
+                for (int c : row) {
+                    maxCol = Math.max(maxCol, columnOf(index.block(c)));
+                }
+
+                // a parità di colonna vince l'ultima cella in ordine di risposta, come con l'ordinamento stabile
+                List<String> cols = new ArrayList<>(Collections.nCopies(maxCol, null));
+                for (int c : row) {
+                    String val = index.childText(c);
+                    cols.set(columnOf(index.block(c)) - 1, val.isEmpty() ? null : val);
+                }
+                rows.add(cols);
+            }
+
+            BBox box = BBox.of(bboxOf(table));
+            Region region = classifyRegion(box);
+            units.add(DocUnit.tableUnit(
+                    table.page() == null ? page : table.page(),
+                    box,
+                    rows,
+                    table.id(),
+                    table.confidence(),
+                    region,
+                    origin
+            ));
+        }
 
         units.sort(Comparator
                 .comparing(DocUnit::getPage, Comparator.nullsLast(Integer::compareTo))
@@ -378,11 +491,11 @@ public class TextractServiceImpl implements TextractService {
                 .thenComparing(u -> u.getType().toString())
         );
 
-        for (DocUnit u : units) {
-            appendJsonLine(out, u);
-        }
+        return units;
+    }
 
-        return out.toString();
+    private static int columnOf(Block cell) {
+        return cell.columnIndex() == null ? 1 : cell.columnIndex();
     }
 
     private static Region classifyRegion(BBox b) {
@@ -397,181 +510,40 @@ public class TextractServiceImpl implements TextractService {
         return (b == null || b.getTop() == null) ? 1.0 : b.getTop();
     }
 
-    private static void appendJsonLine(StringBuilder out, DocUnit u) {
-        try {
-            out.append(MAPPER.writeValueAsString(u)).append("\n");
-        } catch (JsonProcessingException e) {
-            Map<String, Object> fallback = Map.of(
-                    "type", u.getType() == null ? null : u.getType().toString(),
-                    "error", e.getMessage()
-            );
-            try {
-                out.append(MAPPER.writeValueAsString(fallback)).append("\n");
-            } catch (JsonProcessingException ex) {
-                out.append("{\"type\":\"ERROR\",\"error\":\"serialization failed\"}\n");
-            }
-        }
-    }
-
-    private boolean hasLayout(List<Block> blocks) {
-        return blocks.stream().anyMatch(b ->
-                b.blockType() == BlockType.LAYOUT_TEXT
-                        || b.blockType() == BlockType.LAYOUT_TITLE
-                        || b.blockType() == BlockType.LAYOUT_SECTION_HEADER
-                        || b.blockType() == BlockType.LAYOUT_TABLE
-                        || b.blockType() == BlockType.LAYOUT_LIST
-                        || b.blockType() == BlockType.LAYOUT_HEADER
-                        || b.blockType() == BlockType.LAYOUT_FOOTER
-        );
-    }
-
-    private Map<Integer, List<BoundingBox>> buildLayoutBoxesByPage(List<Block> blocks, BlockType type,int pageNumber) {
+    private static Map<Integer, List<BoundingBox>> buildLayoutBoxesByPage(TextractBlockIndex index, BlockType type, int pageNumber) {
         Map<Integer, List<BoundingBox>> byPage = new HashMap<>();
-        blocks.stream()
-                .filter(b -> b.blockType() == type)
-                .forEach(b -> {
-                    BoundingBox bb = bboxOf(b);
-                    if (bb == null) return;
-                    int page = b.page() == null ? pageNumber : b.page();
-                    byPage.computeIfAbsent(page, k -> new ArrayList<>()).add(bb);
-                });
+        for (int i : index.ofType(type)) {
+            Block b = index.block(i);
+            BoundingBox bb = bboxOf(b);
+            if (bb == null) continue;
+            int page = b.page() == null ? pageNumber : b.page();
+            byPage.computeIfAbsent(page, k -> new ArrayList<>()).add(bb);
+        }
         return byPage;
     }
 
-    private boolean isInsideAnyBox(Block block, Map<Integer, List<BoundingBox>> boxesByPage, double minCoverage, int pageNumber) {
-        BoundingBox lb = bboxOf(block);
-        if (lb == null) return false;
+    private static boolean isInsideAnyBox(Block block, TableAreaIndex tableAreas, double minCoverage, int pageNumber) {
         int page = block.page() == null ? pageNumber : block.page();
-        List<BoundingBox> boxes = boxesByPage.getOrDefault(page, Collections.emptyList());
-        if (boxes.isEmpty()) return false;
-
-        double la = area(lb);
-        if (la <= 0) return false;
-
-        for (BoundingBox cb : boxes) {
-            double inter = intersectionArea(lb, cb);
-            if (inter / la >= minCoverage) return true;
-        }
-        return false;
+        return tableAreas.covers(bboxOf(block), page, minCoverage);
     }
 
-    private String getTextFromChildren(Block parent, Map<String, Block> byId, boolean multiline) {
-        if (parent == null || parent.relationships() == null) return "";
-        List<String> lines = new ArrayList<>();
-
-        for (Relationship rel : parent.relationships()) {
-            if (rel.type() != RelationshipType.CHILD || rel.ids() == null) continue;
-
-            List<Block> lineBlocks = rel.ids().stream()
-                    .map(byId::get)
-                    .filter(Objects::nonNull)
-                    .filter(b -> b.blockType() == BlockType.LINE)
-                    .collect(Collectors.toList());
-
-            if (!lineBlocks.isEmpty()) {
-                for (Block lb : lineBlocks) {
-                    String t = fixSymbols(lb.text());
-                    if (t != null && !t.isBlank()) lines.add(t);
-                }
-            } else {
-
-                StringBuilder buf = new StringBuilder();
-                for (String id : rel.ids()) {
-                    Block b = byId.get(id);
-                    if (b == null) continue;
-                    switch (b.blockType()) {
-                        case WORD -> {
-                            String w = fixSymbols(b.text());
-                            if (w != null) buf.append(w).append(' ');
-                            if (w == null) buf.append(w).append(' ');
-                        }
-                        case SELECTION_ELEMENT -> {
-                            String mark = b.selectionStatus() == SelectionStatus.SELECTED ? "☒" : "☐";
-                            buf.append(mark).append(' ');
-                        }
-                        default -> {
-                            String deep = getTextFromChildren(b, byId, multiline);
-                            if (!deep.isBlank()) {
-                                if (buf.length() > 0) buf.append(' ');
-                                buf.append(deep);
-                            }
-                        }
-                    }
-                }
-                String t = buf.toString().trim();
-                if (!t.isBlank()) lines.add(t);
+    private static Map<Integer, List<BoundingBox>> buildCellBoxesByPage(TextractBlockIndex index, int pageNumber) {
+        Map<Integer, List<BoundingBox>> byPage = new HashMap<>();
+        for (int t : index.ofType(BlockType.TABLE)) {
+            Block table = index.block(t);
+            for (int c : index.tableCells(t)) {
+                Block cell = index.block(c);
+                BoundingBox bb = bboxOf(cell);
+                if (bb == null) continue;
+                int page = cell.page() != null ? cell.page() : (table.page() == null ? pageNumber : table.page());
+                byPage.computeIfAbsent(page, k -> new ArrayList<>()).add(bb);
             }
         }
-
-        if (lines.isEmpty()) {
-            String t = fixSymbols(parent.text());
-            return t == null ? "" : t.trim();
-        }
-
-        return (multiline ? String.join("\n", lines) : String.join(" ", lines)).trim();
-    }
-
-    private static double intersectionArea(BoundingBox a, BoundingBox b) {
-        if (a == null || b == null) return 0;
-        double ax1 = a.left(), ay1 = a.top();
-        double ax2 = a.left() + a.width(), ay2 = a.top() + a.height();
-        double bx1 = b.left(), by1 = b.top();
-        double bx2 = b.left() + b.width(), by2 = b.top() + b.height();
-        double ix = Math.max(0, Math.min(ax2, bx2) - Math.max(ax1, bx1));
-        double iy = Math.max(0, Math.min(ay2, by2) - Math.max(ay1, by1));
-        return ix * iy;
-    }
-
-    private String fixSymbols(String s) {
-        if (s == null) return null;
-        return s.replace('�', '€');
-    }
-
-    private Map<Integer, List<BoundingBox>> buildCellBoxesByPage(List<Block> blocks, Map<String, Block> byId, int pageNumber) {
-        Map<Integer, List<BoundingBox>> byPage = new HashMap<>();
-        blocks.stream()
-                .filter(b -> b.blockType() == BlockType.TABLE)
-                .forEach(table -> {
-                    List<Block> cells = getTableCells(table, byId);
-                    for (Block c : cells) {
-                        BoundingBox bb = bboxOf(c);
-                        if (bb == null) continue;
-                        int page = c.page() != null ? c.page() : (table.page() == null ? pageNumber : table.page());
-                        byPage.computeIfAbsent(page, k -> new ArrayList<>()).add(bb);
-                    }
-                });
         return byPage;
     }
 
-    private static List<Block> getTableCells(Block table, Map<String, Block> byId) {
-        if (table.relationships() == null) return List.of();
-
-        return table.relationships().stream()
-                .filter(r -> r.type() == RelationshipType.CHILD && r.ids() != null)
-                .flatMap(r -> r.ids().stream())
-                .map(byId::get)
-                .filter(Objects::nonNull)
-                .flatMap(b -> {
-                    if (b.blockType() == BlockType.CELL) return java.util.stream.Stream.of(b);
-                    if (b.blockType() == BlockType.MERGED_CELL && b.relationships() != null) {
-                        return b.relationships().stream()
-                                .filter(r -> r.type() == RelationshipType.CHILD && r.ids() != null)
-                                .flatMap(r -> r.ids().stream())
-                                .map(byId::get)
-                                .filter(bb -> bb != null && bb.blockType() == BlockType.CELL);
-                    }
-                    return java.util.stream.Stream.empty();
-                })
-                .collect(Collectors.toList());
-    }
-
     private static BoundingBox bboxOf(Block b) {
         if (b == null || b.geometry() == null || b.geometry().boundingBox() == null) return null;
         return b.geometry().boundingBox();
     }
-
-    private static double area(BoundingBox b) {
-        if (b == null) return 0;
-        return Math.max(0, b.width()) * Math.max(0, b.height());
-    }
 }
@@ -0,0 +1,91 @@
+package it.piero.notiva.utils;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Limite di concorrenza adattivo AIMD: +1 per "finestra" di successi, dimezzato sul throttling.
+// Lock esplicito e non synchronized/wait: chi aspetta da un virtual thread non blocca il carrier.
+public final class AimdLimiter {
+
+    private static final double DECREASE_FACTOR = 0.5;
+    // un burst di throttling sulle richieste già in volo conta come un solo segnale
+    private static final long DECREASE_COOLDOWN_MS = 1000;
+
+    private final int minLimit;
+    private final int maxLimit;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition slotFree = lock.newCondition();
+
+    private double limit;
+    private int inFlight;
+    private long lastDecrease;
+
+    public AimdLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+    }
+
+    public void acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (inFlight >= (int) limit) {
+                slotFree.await();
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            slotFree.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void onSuccess() {
+        lock.lock();
+        try {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+            slotFree.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void onThrottle() {
+        lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            if (now - lastDecrease < DECREASE_COOLDOWN_MS) return;
+            lastDecrease = now;
+            limit = Math.max(minLimit, limit * DECREASE_FACTOR);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int limit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int inFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
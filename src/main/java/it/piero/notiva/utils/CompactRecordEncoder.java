@@ -0,0 +1,158 @@
+package it.piero.notiva.utils;
+
+import it.piero.notiva.model.BBox;
+import it.piero.notiva.model.DocUnit;
+import it.piero.notiva.model.DocUnitType;
+import it.piero.notiva.model.Region;
+
+import java.util.List;
+import java.util.Objects;
+
+// Serializzazione compatta dei record per il prompt: niente chiavi JSON ripetute, niente blockId,
+// file e pagina scritti una volta sola, coordinate a due decimali, tabelle come righe delimitate.
+//
+//   FIELDS
+//   - <campo>
+//   NOTES
+//   <note>
+//   RECORDS
+//   @ <file>
+//   # <pagina>
+//   T <left>,<top>,<width>,<height> [SUBTYPE] [HEADER|FOOTER]: <testo>
+//   TAB <left>,<top>,<width>,<height> [HEADER|FOOTER]:
+//   | <cella> | <cella> |
+//
+// Regione assente = BODY. Nei valori \ e a capo sono escapati (\\, \n), nelle celle anche | (\|).
+public final class CompactRecordEncoder {
+
+    private CompactRecordEncoder() {}
+
+    public static String encode(List<DocUnit> records, List<String> fields, String notes) {
+        StringBuilder sb = new StringBuilder(256 + (records == null ? 0 : records.size() * 64));
+        if (fields != null && !fields.isEmpty()) {
+            sb.append("FIELDS\n");
+            for (String f : fields) {
+                sb.append("- ");
+                escape(f, false, sb);
+                sb.append('\n');
+            }
+        }
+        if (notes != null && !notes.isBlank()) {
+            sb.append("NOTES\n");
+            escape(notes, false, sb);
+            sb.append('\n');
+        }
+        sb.append("RECORDS\n");
+        encodeRecords(records, sb);
+        return sb.toString();
+    }
+
+    public static String encodeRecords(List<DocUnit> records) {
+        StringBuilder sb = new StringBuilder(records == null ? 16 : records.size() * 64);
+        encodeRecords(records, sb);
+        return sb.toString();
+    }
+
+    private static void encodeRecords(List<DocUnit> records, StringBuilder sb) {
+        if (records == null) return;
+        String origin = null;
+        Integer page = null;
+        boolean first = true;
+        for (DocUnit u : records) {
+            if (u == null) continue;
+            if (first || !Objects.equals(origin, u.getOrigin())) {
+                origin = u.getOrigin();
+                page = null;
+                sb.append("@ ");
+                escape(origin == null ? "" : origin, false, sb);
+                sb.append('\n');
+            }
+            if (first || !Objects.equals(page, u.getPage())) {
+                page = u.getPage();
+                sb.append("# ").append(page == null ? "" : page).append('\n');
+            }
+            first = false;
+
+            if (u.getType() == DocUnitType.TABLE) {
+                table(u, sb);
+            } else {
+                text(u, sb);
+            }
+        }
+    }
+
+    private static void text(DocUnit u, StringBuilder sb) {
+        sb.append('T');
+        bbox(u.getBbox(), sb);
+        if (u.getSubtype() != null && !u.getSubtype().isBlank()) sb.append(' ').append(u.getSubtype());
+        region(u.getRegion(), sb);
+        sb.append(": ");
+        escape(u.getText() == null ? "" : u.getText(), false, sb);
+        sb.append('\n');
+    }
+
+    private static void table(DocUnit u, StringBuilder sb) {
+        sb.append("TAB");
+        bbox(u.getBbox(), sb);
+        region(u.getRegion(), sb);
+        sb.append(":\n");
+        if (u.getRows() == null) return;
+        for (List<String> row : u.getRows()) {
+            sb.append('|');
+            if (row != null) {
+                for (String cell : row) {
+                    sb.append(' ');
+                    if (cell != null) escape(cell, true, sb);
+                    sb.append(" |");
+                }
+            }
+            sb.append('\n');
+        }
+    }
+
+    private static void region(Region region, StringBuilder sb) {
+        if (region != null && region != Region.BODY) sb.append(' ').append(region.name());
+    }
+
+    private static void bbox(BBox b, StringBuilder sb) {
+        if (b == null) return;
+        sb.append(' ');
+        coord(b.getLeft(), sb);
+        sb.append(',');
+        coord(b.getTop(), sb);
+        sb.append(',');
+        coord(b.getWidth(), sb);
+        sb.append(',');
+        coord(b.getHeight(), sb);
+    }
+
+    // due decimali senza zeri finali: 0.5 invece di 0.50, 0 invece di 0.00
+    static void coord(Float v, StringBuilder sb) {
+        if (v == null) return;
+        int hundredths = Math.round(v * 100f);
+        if (hundredths < 0) {
+            sb.append('-');
+            hundredths = -hundredths;
+        }
+        sb.append(hundredths / 100);
+        int frac = hundredths % 100;
+        if (frac == 0) return;
+        sb.append('.');
+        if (frac < 10) sb.append('0');
+        sb.append(frac % 10 == 0 ? frac / 10 : frac);
+    }
+
+    static void escape(String s, boolean cell, StringBuilder sb) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> {
+                }
+                case '|' -> sb.append(cell ? "\\|" : "|");
+                default -> sb.append(c);
+            }
+        }
+    }
+}
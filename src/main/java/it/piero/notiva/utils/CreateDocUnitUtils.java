@@ -14,6 +14,7 @@ public class CreateDocUnitUtils {
         files.setFields(request.getFields());
         files.setRecords(docUnits);
         files.setNotes(request.getNotes());
+        files.setOutputProfile(request.getOutputProfile());
         return files;
 
     }
@@ -24,6 +25,7 @@ public class CreateDocUnitUtils {
         files.setFields(request.getFields());
         files.setRecords(docUnits);
         files.setNotes(request.getNotes());
+        files.setOutputProfile(request.getOutputProfile());
         return files;
 
     }
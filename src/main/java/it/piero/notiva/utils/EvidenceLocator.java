@@ -0,0 +1,129 @@
+package it.piero.notiva.utils;
+
+import it.piero.notiva.model.DocUnit;
+import it.piero.notiva.model.DocUnitType;
+import it.piero.notiva.model.Evidence;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+// Evidence senza LLM per il profilo value-only: cerca il valore estratto nei record (righe di testo e righe di
+// tabella unite con " | ") e restituisce la prima riga che lo contiene, con la sua pagina.
+public final class EvidenceLocator {
+
+    private static final int SNIPPET_MAX_LEN = 200;
+    private static final int NEEDLE_MIN_LEN = 2;
+
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern SPACES = Pattern.compile("\\s+");
+    private static final Pattern CURRENCY = Pattern.compile("^(?:€|EUR)\\s*", Pattern.CASE_INSENSITIVE);
+    private static final Pattern THOUSANDS = Pattern.compile("(?<=\\d)\\.(?=\\d{3}(?!\\d))");
+
+    private record Line(Integer page, String text, String normalized) {}
+
+    private EvidenceLocator() {}
+
+    // null se il valore è NOT_FOUND o non compare nei record
+    public static Evidence locate(List<DocUnit> records, String value) {
+        if (records == null) return null;
+        List<Line> lines = new ArrayList<>();
+        for (DocUnit u : records) {
+            if (u == null) continue;
+            if (u.getType() == DocUnitType.TABLE) {
+                if (u.getRows() == null) continue;
+                for (List<String> row : u.getRows()) {
+                    if (row != null) addLine(lines, u.getPage(), joinRow(row));
+                }
+            } else if (u.getText() != null) {
+                for (String line : u.getText().split("\n")) addLine(lines, u.getPage(), line);
+            }
+        }
+        return find(lines, value);
+    }
+
+    // testo di analyzeText: nessuna pagina
+    public static Evidence locate(String text, String value) {
+        if (text == null) return null;
+        List<Line> lines = new ArrayList<>();
+        for (String line : text.split("\n")) addLine(lines, null, line);
+        return find(lines, value);
+    }
+
+    private static Evidence find(List<Line> lines, String value) {
+        if (value == null || value.isBlank() || "NOT_FOUND".equals(value) || lines.isEmpty()) return null;
+        // il valore intero prima delle sue parti: vince lo snippet più specifico
+        for (String needle : needles(value)) {
+            Pattern bounded = bounded(needle);
+            for (Line line : lines) {
+                if (line.normalized().contains(needle) && bounded.matcher(line.normalized()).find()) {
+                    return Evidence.builder().page(line.page()).snippet(snippet(line.text())).build();
+                }
+            }
+        }
+        return null;
+    }
+
+    // il valore, le parti separate da " | ", le etichette "Etichetta: valore" e gli importi come li scrive il documento
+    static List<String> needles(String value) {
+        Set<String> out = new LinkedHashSet<>();
+        List<String> parts = new ArrayList<>();
+        parts.add(value);
+        if (value.contains(" | ")) parts.addAll(List.of(value.split(" \\| ")));
+
+        for (String part : parts) {
+            add(out, part);
+            int colon = part.indexOf(": ");
+            String v = colon > 0 ? part.substring(colon + 2) : part;
+            add(out, v);
+
+            // "€ 1.234,56" nel prompt; nel documento spesso "1.234,56", "1234,56" o "1.234"
+            String amount = CURRENCY.matcher(v.trim()).replaceFirst("");
+            if (!amount.equals(v.trim())) {
+                add(out, amount);
+                add(out, THOUSANDS.matcher(amount).replaceAll(""));
+                if (amount.endsWith(",00")) add(out, amount.substring(0, amount.length() - 3));
+            }
+        }
+        return new ArrayList<>(out);
+    }
+
+    // solo occorrenze intere: "100,00" non dentro "1.100,00", "ab12" non dentro "xab123"
+    private static Pattern bounded(String needle) {
+        return Pattern.compile("(?<![\\p{L}\\p{N}])(?<!\\d[.,])" + Pattern.quote(needle) + "(?![\\p{L}\\p{N}])(?![.,]\\d)");
+    }
+
+    private static void add(Set<String> out, String needle) {
+        String n = normalize(needle);
+        if (n.length() >= NEEDLE_MIN_LEN) out.add(n);
+    }
+
+    private static void addLine(List<Line> lines, Integer page, String text) {
+        String t = text.trim();
+        if (!t.isEmpty()) lines.add(new Line(page, t, normalize(t)));
+    }
+
+    private static String joinRow(List<String> row) {
+        StringBuilder sb = new StringBuilder();
+        for (String cell : row) {
+            if (cell == null || cell.isBlank()) continue;
+            if (!sb.isEmpty()) sb.append(" | ");
+            sb.append(cell.trim());
+        }
+        return sb.toString();
+    }
+
+    private static String snippet(String line) {
+        return line.length() <= SNIPPET_MAX_LEN ? line : line.substring(0, SNIPPET_MAX_LEN) + "…";
+    }
+
+    // maiuscole, accenti e spazi multipli non contano; la punteggiatura sì (importi e codici)
+    private static String normalize(String s) {
+        String n = MARKS.matcher(Normalizer.normalize(s, Normalizer.Form.NFD)).replaceAll("").toLowerCase(Locale.ROOT);
+        return SPACES.matcher(n).replaceAll(" ").trim();
+    }
+}
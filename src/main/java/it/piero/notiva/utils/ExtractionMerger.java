@@ -0,0 +1,115 @@
+package it.piero.notiva.utils;
+
+import it.piero.notiva.model.ExtractionItem;
+import it.piero.notiva.model.ExtractionResult;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+// Unisce i risultati parziali (un ExtractionResult per blocco di record) in un'estrazione per campo:
+// vince il candidato con lo stato migliore e poi la confidence più alta, gli altri diventano alternative.
+public final class ExtractionMerger {
+
+    private static final int MAX_ALTERNATIVES = 3;
+    private static final String NOT_FOUND = "NOT_FOUND";
+
+    private ExtractionMerger() {}
+
+    public static ExtractionResult merge(List<String> fields, List<ExtractionResult> partials) {
+        Map<String, List<ExtractionItem>> byField = new LinkedHashMap<>();
+        for (String f : fields) byField.put(key(f), new ArrayList<>());
+
+        for (ExtractionResult r : partials) {
+            if (r == null || r.getExtractions() == null) continue;
+            for (ExtractionItem item : r.getExtractions()) {
+                if (item == null || item.getName() == null) continue;
+                List<ExtractionItem> candidates = byField.get(key(item.getName()));
+                if (candidates != null) candidates.add(item);
+            }
+        }
+
+        List<ExtractionItem> merged = new ArrayList<>(fields.size());
+        for (String f : fields) {
+            merged.add(pick(f, byField.get(key(f))));
+        }
+        return ExtractionResult.builder().extractions(merged).build();
+    }
+
+    private static ExtractionItem pick(String field, List<ExtractionItem> candidates) {
+        // ordinamento stabile: a parità vince il blocco che viene prima nel documento
+        List<ExtractionItem> ranked = new ArrayList<>(candidates);
+        ranked.sort(Comparator
+                .comparingInt(ExtractionMerger::statusRank)
+                .thenComparing(ExtractionMerger::confidence, Comparator.reverseOrder()));
+
+        if (ranked.isEmpty() || isNotFound(ranked.get(0))) {
+            return ExtractionItem.builder()
+                    .name(field)
+                    .value(NOT_FOUND)
+                    .status(NOT_FOUND)
+                    .confidence(0.0)
+                    .alternatives(List.of())
+                    .build();
+        }
+
+        ExtractionItem best = ranked.get(0);
+        String bestKey = key(best.getValue());
+
+        Set<String> seen = new LinkedHashSet<>();
+        seen.add(bestKey);
+        List<String> alternatives = new ArrayList<>();
+        addAlternatives(best.getAlternatives(), seen, alternatives);
+        for (int k = 1; k < ranked.size(); k++) {
+            ExtractionItem other = ranked.get(k);
+            if (isNotFound(other)) continue;
+            addAlternative(other.getValue(), seen, alternatives);
+            addAlternatives(other.getAlternatives(), seen, alternatives);
+        }
+
+        return ExtractionItem.builder()
+                .name(field)
+                .value(best.getValue())
+                .evidence(best.getEvidence())
+                .status(best.getStatus())
+                .confidence(best.getConfidence())
+                .alternatives(alternatives)
+                .build();
+    }
+
+    private static void addAlternatives(List<String> values, Set<String> seen, List<String> out) {
+        if (values == null) return;
+        for (String v : values) addAlternative(v, seen, out);
+    }
+
+    private static void addAlternative(String value, Set<String> seen, List<String> out) {
+        if (out.size() >= MAX_ALTERNATIVES || value == null || value.isBlank() || NOT_FOUND.equals(value)) return;
+        if (seen.add(key(value))) out.add(value);
+    }
+
+    private static int statusRank(ExtractionItem item) {
+        if (isNotFound(item)) return 2;
+        return "AMBIGUO".equals(item.getStatus()) ? 1 : 0;
+    }
+
+    private static boolean isNotFound(ExtractionItem item) {
+        return NOT_FOUND.equals(item.getStatus()) || item.getValue() == null || NOT_FOUND.equals(item.getValue());
+    }
+
+    private static double confidence(ExtractionItem item) {
+        return item.getConfidence() == null ? 0.0 : item.getConfidence();
+    }
+
+    // stessi criteri di confronto chiesti al modello: maiuscole, accenti, punteggiatura e spazi non contano
+    static String key(String s) {
+        if (s == null) return "";
+        String n = Normalizer.normalize(s, Normalizer.Form.NFD).replaceAll("\\p{M}+", "");
+        return n.toLowerCase(Locale.ROOT).replaceAll("[\\p{P}\\s_]+", "");
+    }
+}
@@ -0,0 +1,155 @@
+package it.piero.notiva.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Scanner JSON incrementale: riceve l'output del modello a pezzi e segnala ogni oggetto dell'array
+// di primo livello indicato (es. "extractions") appena la sua graffa di chiusura arriva.
+// Se richiesto, nello stesso passaggio annota lo span della stringa di un campo dell'oggetto (es. "value").
+public final class ExtractionStreamParser {
+
+    // posizioni [start, end) nel testo accumulato
+    public record Span(int start, int end) {}
+
+    // value: contenuto grezzo della stringa valueField nell'oggetto, null se assente o non stringa
+    public record Element(int index, Span span, Span value) {}
+
+    private final String arrayField;
+    private final String valueField;
+    private final StringBuilder text = new StringBuilder();
+
+    private int pos;
+    private int depth;
+    private boolean inString;
+    private boolean escape;
+    private int stringStart = -1;
+    private String lastString;
+    private String pendingKey;
+    private int arrayDepth = -1;
+    private int elementStart = -1;
+    private int elements;
+    private boolean arrayClosed;
+
+    // chiavi al livello dell'oggetto dell'array, confrontate senza estrarre sottostringhe
+    private int keyStart = -1;
+    private int keyEnd = -1;
+    private boolean valueKeyPending;
+    private Span valueSpan;
+
+    public ExtractionStreamParser(String arrayField) {
+        this(arrayField, null);
+    }
+
+    public ExtractionStreamParser(String arrayField, String valueField) {
+        this.arrayField = arrayField;
+        this.valueField = valueField;
+    }
+
+    public List<Element> feed(CharSequence chunk) {
+        if (chunk == null || chunk.isEmpty()) return List.of();
+        text.append(chunk);
+
+        List<Element> out = null;
+        for (; pos < text.length(); pos++) {
+            char c = text.charAt(pos);
+
+            if (inString) {
+                if (escape) {
+                    escape = false;
+                } else if (c == '\\') {
+                    escape = true;
+                } else if (c == '"') {
+                    inString = false;
+                    if (depth == 1) {
+                        lastString = text.substring(stringStart + 1, pos);
+                    } else if (inElement()) {
+                        if (valueKeyPending) {
+                            valueSpan = new Span(stringStart + 1, pos);
+                            valueKeyPending = false;
+                        }
+                        keyStart = stringStart + 1;
+                        keyEnd = pos;
+                    }
+                }
+                continue;
+            }
+
+            switch (c) {
+                case '"' -> {
+                    inString = true;
+                    stringStart = pos;
+                }
+                case ':' -> {
+                    if (depth == 1) {
+                        pendingKey = lastString;
+                    } else if (inElement() && valueField != null && keyStart >= 0) {
+                        valueKeyPending = isValueKey();
+                    }
+                }
+                case ',' -> {
+                    if (depth == 1) pendingKey = null;
+                    if (inElement()) {
+                        valueKeyPending = false;
+                        keyStart = -1;
+                    }
+                }
+                case '{', '[' -> {
+                    depth++;
+                    if (c == '[' && depth == 2 && arrayDepth < 0 && arrayField.equals(pendingKey)) {
+                        arrayDepth = depth;
+                    } else if (c == '{' && arrayDepth > 0 && depth == arrayDepth + 1) {
+                        elementStart = pos;
+                        valueSpan = null;
+                        valueKeyPending = false;
+                        keyStart = -1;
+                    } else if (arrayDepth > 0 && depth == arrayDepth + 2) {
+                        // valore annidato (oggetto o array): non è una stringa
+                        valueKeyPending = false;
+                        keyStart = -1;
+                    }
+                }
+                case '}', ']' -> {
+                    if (c == '}' && arrayDepth > 0 && depth == arrayDepth + 1 && elementStart >= 0) {
+                        if (out == null) out = new ArrayList<>();
+                        out.add(new Element(elements++, new Span(elementStart, pos + 1), valueSpan));
+                        elementStart = -1;
+                    } else if (c == ']' && depth == arrayDepth) {
+                        arrayClosed = true;
+                    }
+                    depth--;
+                }
+                default -> {
+                }
+            }
+        }
+        return out == null ? List.of() : out;
+    }
+
+    private boolean isValueKey() {
+        if (keyEnd - keyStart != valueField.length()) return false;
+        for (int i = 0; i < valueField.length(); i++) {
+            if (text.charAt(keyStart + i) != valueField.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private boolean inElement() {
+        return elementStart >= 0 && depth == arrayDepth + 1;
+    }
+
+    public String text() {
+        return text.toString();
+    }
+
+    public String text(Span span) {
+        return text.substring(span.start(), span.end());
+    }
+
+    public boolean isArrayClosed() {
+        return arrayClosed;
+    }
+
+    public int elements() {
+        return elements;
+    }
+}
@@ -0,0 +1,80 @@
+package it.piero.notiva.utils;
+
+import org.springframework.ai.openai.api.OpenAiApi.LogProbs.Content;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Allinea i token dei logprobs al JSON generato: offset in caratteri di ogni token e ricerca binaria
+// da intervallo di caratteri a intervallo di token. valueRanges fa tutto in un solo passaggio sui token.
+public final class LogProbsJsonAligner {
+
+    private final List<Content> tokens = new ArrayList<>();
+    // tokStart[i] = offset del token i; tokStart[size] = lunghezza del testo
+    private int[] tokStart = new int[257];
+
+    // per ogni oggetto di arrayField, nell'ordine, i token della stringa valueField (null se assente o vuota):
+    // si legge per indice, quindi valori ripetuti non finiscono sullo span sbagliato
+    public static List<LogProbsUtils.Range> valueRanges(List<Content> tokens, String arrayField, String valueField) {
+        LogProbsJsonAligner aligner = new LogProbsJsonAligner();
+        ExtractionStreamParser parser = new ExtractionStreamParser(arrayField, valueField);
+        List<ExtractionStreamParser.Span> values = new ArrayList<>();
+        for (Content c : tokens) {
+            aligner.add(c);
+            for (ExtractionStreamParser.Element e : parser.feed(c.token())) {
+                values.add(e.value());
+            }
+        }
+
+        List<LogProbsUtils.Range> out = new ArrayList<>(values.size());
+        for (ExtractionStreamParser.Span v : values) {
+            out.add(aligner.range(v));
+        }
+        return out;
+    }
+
+    public void addAll(List<Content> chunk) {
+        for (Content c : chunk) add(c);
+    }
+
+    public void add(Content c) {
+        int n = tokens.size();
+        if (n + 1 >= tokStart.length) tokStart = Arrays.copyOf(tokStart, tokStart.length * 2);
+        tokStart[n + 1] = tokStart[n] + (c.token() == null ? 0 : c.token().length());
+        tokens.add(c);
+    }
+
+    public List<Content> tokens() {
+        return tokens;
+    }
+
+    // caratteri coperti dai token ricevuti finora
+    public int chars() {
+        return tokStart[tokens.size()];
+    }
+
+    // token [start, end) che coprono i caratteri [start, end); null se lo span è vuoto o fuori dal testo
+    public LogProbsUtils.Range range(ExtractionStreamParser.Span chars) {
+        if (chars == null || chars.end() <= chars.start() || chars.end() > chars()) return null;
+        int s = tokenAt(chars.start());
+        int e = tokenAt(chars.end() - 1) + 1;
+        return s >= 0 && e > s ? new LogProbsUtils.Range(s, e) : null;
+    }
+
+    private int tokenAt(int charPos) {
+        int lo = 0;
+        int hi = tokens.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (tokStart[mid + 1] <= charPos) {
+                lo = mid + 1;
+            } else if (tokStart[mid] > charPos) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+}
@@ -6,8 +6,6 @@ import org.springframework.ai.openai.api.OpenAiApi.LogProbs.Content;
 import org.springframework.stereotype.Component;
 
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 @Component
@@ -37,51 +35,6 @@ public final class LogProbsUtils {
         return (lp != null && lp.content() != null) ? lp.content() : List.of();
     }
 
-    public static List<Range> jsonStringValueWindows(LogProbs lp, String fieldName) {
-        List<Content> toks = content(lp);
-        String fullText = text(lp);
-
-        int n = toks.size();
-        int[] start = new int[n];
-        int[] end   = new int[n];
-        int pos = 0;
-        for (int i = 0; i < n; i++) {
-            start[i] = pos;
-            pos += toks.get(i).token().length();
-            end[i] = pos;
-        }
-
-        Pattern p = Pattern.compile("\"" + Pattern.quote(fieldName) + "\"\\s*:\\s*\"(.*?)\"", Pattern.DOTALL);
-        Matcher m = p.matcher(fullText);
-
-        List<Range> windows = new ArrayList<>();
-        while (m.find()) {
-            int valStartChar = m.start(1);
-            int valEndChar   = m.end(1);
-            int s = charToTokenIndex(start, end, valStartChar);
-            int e = charToTokenIndexEnd(start, end, valEndChar);
-            if (s >= 0 && e > s) windows.add(new Range(s, e));
-        }
-        return windows;
-    }
-
-
-
-    private static int charToTokenIndex(int[] start, int[] end, int charPos) {
-        for (int i = 0; i < start.length; i++) {
-            if (charPos >= start[i] && charPos < end[i]) return i;
-        }
-        return -1;
-    }
-
-    private static int charToTokenIndexEnd(int[] start, int[] end, int charPos) {
-        for (int i = 0; i < start.length; i++) {
-            if (end[i] >= charPos) return i + 1;
-        }
-        return start.length;
-    }
-
-
     private static final java.util.regex.Pattern CONTENT_CHARS =
             java.util.regex.Pattern.compile("[\\p{L}\\p{N}]");
 
@@ -0,0 +1,52 @@
+package it.piero.notiva.utils;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+// Un oggetto JSON per riga scritto direttamente sullo stream: nessuna stringa intermedia dell'intero documento
+public final class NdjsonWriter implements Closeable {
+
+    public static final String MEDIA_TYPE = "application/x-ndjson";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .disable(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+    private final JsonGenerator generator;
+
+    public NdjsonWriter(OutputStream out) throws IOException {
+        this.generator = MAPPER.getFactory().createGenerator(out)
+                .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+                .setRootValueSeparator(null);
+    }
+
+    public void write(Object value) throws IOException {
+        MAPPER.writeValue(generator, value);
+        generator.writeRaw('\n');
+    }
+
+    // flush a fine blocco (es. una pagina) così il client riceve i risultati man mano
+    public void writeAll(List<?> values) {
+        try {
+            for (Object v : values) {
+                write(v);
+            }
+            generator.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        generator.close();
+    }
+}
@@ -0,0 +1,118 @@
+package it.piero.notiva.utils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+
+// Impronta di una pagina renderizzata: densità d'inchiostro e griglia fine dell'inchiostro (~80k celle).
+// Una cifra cambiata sposta molto inchiostro in una o due celle; ricompressione, rumore o toner diverso di una
+// nuova scansione ne spostano poco in tutte. La griglia parte dall'inchiostro e non dal bordo del foglio,
+// quindi una scansione traslata di qualche pixel dà le stesse celle.
+public record PageSignature(double inkRatio, byte[] inkGrid, int gridWidth) {
+
+    private static final int DARK_LUMA = 128;
+    // i bordi delle scansioni (ombre, fori, graffette) non contano come inchiostro
+    private static final double MARGIN = 0.05;
+
+    // ~240x340 celle su un A4: mezza cifra a 150 dpi
+    private static final int GRID_CELLS = 81_600;
+    // sopra questa luminanza è fondo carta (rumore, grana); sotto conta in proporzione a quanto è scuro
+    private static final int GRID_FLOOR_LUMA = 208;
+    // origine della griglia: dove inizia lo 0,1% dell'inchiostro, con un po' di margine prima
+    private static final double ORIGIN_QUANTILE = 0.001;
+    private static final double ORIGIN_PAD = 0.02;
+
+    public static PageSignature of(BufferedImage img) {
+        int w = img.getWidth();
+        int h = img.getHeight();
+        int x0 = (int) (w * MARGIN), x1 = w - x0;
+        int y0 = (int) (h * MARGIN), y1 = h - y0;
+        int iw = x1 - x0, ih = y1 - y0;
+        if (iw <= 0 || ih <= 0) return new PageSignature(0.0, new byte[0], 0);
+
+        // getRGB su TYPE_BYTE_GRAY passa per la conversione di colore e schiarisce i mezzitoni: si legge il raster
+        Raster gray = img.getType() == BufferedImage.TYPE_BYTE_GRAY ? img.getRaster() : null;
+        byte[] lumas = new byte[iw * ih];
+        long[] darkCols = new long[iw];
+        long[] darkRows = new long[ih];
+        long dark = 0;
+
+        // inchiostro su ogni pixel: una riga corta o un timbro sfuggono al campionamento
+        for (int y = 0; y < ih; y++) {
+            for (int x = 0; x < iw; x++) {
+                int luma;
+                if (gray != null) {
+                    luma = gray.getSample(x0 + x, y0 + y, 0);
+                } else {
+                    int rgb = img.getRGB(x0 + x, y0 + y);
+                    luma = (((rgb >> 16) & 0xff) * 299 + ((rgb >> 8) & 0xff) * 587 + (rgb & 0xff) * 114) / 1000;
+                }
+                lumas[y * iw + x] = (byte) luma;
+                if (luma < DARK_LUMA) {
+                    dark++;
+                    darkCols[x]++;
+                    darkRows[y]++;
+                }
+            }
+        }
+
+        long samples = (long) iw * ih;
+        double side = Math.sqrt((double) samples / GRID_CELLS);
+        int gw = Math.max(1, (int) Math.round(iw / side));
+        int gh = Math.max(1, (int) Math.round(ih / side));
+        byte[] grid = inkGrid(lumas, iw, ih, gw, gh,
+                origin(darkCols, dark) - (int) (iw * ORIGIN_PAD),
+                origin(darkRows, dark) - (int) (ih * ORIGIN_PAD));
+
+        return new PageSignature((double) dark / samples, grid, gw);
+    }
+
+    // scuro medio di ogni cella in 0..255, con la cella (0,0) sull'origine dell'inchiostro
+    private static byte[] inkGrid(byte[] lumas, int iw, int ih, int gw, int gh, int ox, int oy) {
+        double cellW = (double) iw / gw;
+        double cellH = (double) ih / gh;
+        double[] mass = new double[gw * gh];
+        for (int y = Math.max(0, oy); y < ih; y++) {
+            int gy = (int) ((y - oy) / cellH);
+            if (gy >= gh) break;
+            for (int x = Math.max(0, ox); x < iw; x++) {
+                int gx = (int) ((x - ox) / cellW);
+                if (gx >= gw) break;
+                int luma = lumas[y * iw + x] & 0xff;
+                if (luma < GRID_FLOOR_LUMA) mass[gy * gw + gx] += GRID_FLOOR_LUMA - luma;
+            }
+        }
+        double full = cellW * cellH * GRID_FLOOR_LUMA;
+        byte[] out = new byte[mass.length];
+        for (int i = 0; i < mass.length; i++) {
+            out[i] = (byte) Math.min(255, Math.round(mass[i] / full * 255));
+        }
+        return out;
+    }
+
+    private static int origin(long[] darkProfile, long dark) {
+        long acc = 0;
+        for (int i = 0; i < darkProfile.length; i++) {
+            acc += darkProfile[i];
+            if (acc > dark * ORIGIN_QUANTILE) return i;
+        }
+        return 0;
+    }
+
+    // massima differenza di inchiostro in una cella, in frazione di cella piena (0..1). L'inchiostro dell'altra
+    // pagina è riscalato al totale di questa: un toner più chiaro o più scuro non conta, una cifra diversa sì
+    public double distance(PageSignature other) {
+        if (gridWidth != other.gridWidth || inkGrid.length != other.inkGrid.length) return 1.0;
+        long sum = 0;
+        long otherSum = 0;
+        for (int i = 0; i < inkGrid.length; i++) {
+            sum += inkGrid[i] & 0xff;
+            otherSum += other.inkGrid[i] & 0xff;
+        }
+        double scale = otherSum == 0 ? 1.0 : (double) sum / otherSum;
+        double max = 0;
+        for (int i = 0; i < inkGrid.length; i++) {
+            max = Math.max(max, Math.abs((inkGrid[i] & 0xff) - scale * (other.inkGrid[i] & 0xff)));
+        }
+        return max / 255;
+    }
+}
@@ -0,0 +1,94 @@
+package it.piero.notiva.utils;
+
+import it.piero.notiva.model.DocUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+@Slf4j
+@Component
+public class PageTriageUtils {
+
+    public enum Kind { OCR, BLANK, DUPLICATE }
+
+    public record Verdict(Kind kind, int duplicateOf) {
+        static final Verdict OCR = new Verdict(Kind.OCR, 0);
+        static final Verdict BLANK = new Verdict(Kind.BLANK, 0);
+    }
+
+    private final boolean enabled;
+    // inchiostro misurato su ogni pixel: una sola riga corta ("Pag. 3") vale ~0.00015
+    private final double blankInkRatio;
+    // massima differenza d'inchiostro in una cella della griglia: una nuova scansione resta sotto ~0.06-0.12,
+    // una cifra diversa nello stesso punto supera ~0.17
+    private final double duplicateMaxDistance;
+    private final double duplicateInkTolerance;
+
+    public PageTriageUtils(@Value("${notiva.triage.enabled:true}") boolean enabled,
+                           @Value("${notiva.triage.blankInkRatio:0.00002}") double blankInkRatio,
+                           @Value("${notiva.triage.duplicateMaxDistance:0.15}") double duplicateMaxDistance,
+                           @Value("${notiva.triage.duplicateInkTolerance:0.05}") double duplicateInkTolerance) {
+        this.enabled = enabled;
+        this.blankInkRatio = blankInkRatio;
+        this.duplicateMaxDistance = duplicateMaxDistance;
+        this.duplicateInkTolerance = duplicateInkTolerance;
+    }
+
+    // una sessione per documento: i duplicati si cercano solo tra le pagine già elaborate dello stesso file
+    public <T> Session<T> newSession() {
+        return new Session<>();
+    }
+
+    public static List<DocUnit> withPage(List<DocUnit> units, int pageNumber) {
+        List<DocUnit> out = new ArrayList<>(units.size());
+        for (DocUnit u : units) {
+            out.add(u.toBuilder().page(pageNumber).build());
+        }
+        return out;
+    }
+
+    public final class Session<T> {
+
+        private final Map<Integer, PageSignature> signatures = new TreeMap<>();
+        private final Map<Integer, T> results = new TreeMap<>();
+
+        private Session() {}
+
+        public Verdict classify(PdfUtils.RenderedPage page) {
+            PageSignature sig = page.signature();
+            if (!enabled || sig == null) return Verdict.OCR;
+
+            if (sig.inkRatio() < blankInkRatio) {
+                log.info("Pagina {} vuota (inchiostro {}), salto OCR", page.pageNumber(), sig.inkRatio());
+                return Verdict.BLANK;
+            }
+
+            for (Map.Entry<Integer, PageSignature> e : signatures.entrySet()) {
+                PageSignature prev = e.getValue();
+                // l'inchiostro totale scarta subito le pagine diverse, la griglia decide sulle altre
+                double inkDelta = Math.abs(prev.inkRatio() - sig.inkRatio()) / Math.max(prev.inkRatio(), sig.inkRatio());
+                if (inkDelta > duplicateInkTolerance || prev.distance(sig) > duplicateMaxDistance) continue;
+
+                log.info("Pagina {} uguale alla pagina {}, riuso il risultato", page.pageNumber(), e.getKey());
+                return new Verdict(Kind.DUPLICATE, e.getKey());
+            }
+            return Verdict.OCR;
+        }
+
+        public void record(PdfUtils.RenderedPage page, T result) {
+            if (page.signature() != null) {
+                signatures.put(page.pageNumber(), page.signature());
+            }
+            results.put(page.pageNumber(), result);
+        }
+
+        public T result(int pageNumber) {
+            return results.get(pageNumber);
+        }
+    }
+}
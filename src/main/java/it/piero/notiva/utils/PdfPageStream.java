@@ -0,0 +1,155 @@
+package it.piero.notiva.utils;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.rendering.PDFRenderer;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Pagine renderizzate in ordine, con al massimo "window" pagine in volo (in rendering o pronte
+// ma non ancora consumate): le successive si renderizzano mentre il chiamante elabora la corrente.
+public final class PdfPageStream implements AutoCloseable {
+
+    @FunctionalInterface
+    interface DocumentOpener {
+        PDDocument open() throws IOException;
+    }
+
+    @FunctionalInterface
+    interface PageRenderer {
+        PdfUtils.RenderedPage render(PDDocument doc, PDFRenderer renderer, int pageIndex) throws IOException;
+    }
+
+    private final DocumentOpener opener;
+    private final PageRenderer pageRenderer;
+    private final ExecutorService executor;
+    private final int[] pageIndexes;
+    private final int window;
+    private final int maxRenderers;
+
+    // un PDFRenderer (e un PDDocument) per worker: PDFBox non è thread-safe
+    private final List<PDDocument> documents = new ArrayList<>();
+    private final Queue<Worker> idleWorkers = new ConcurrentLinkedQueue<>();
+    private final Deque<Future<PdfUtils.RenderedPage>> inFlight = new ArrayDeque<>();
+    private final ReadWriteLock lifecycle = new ReentrantReadWriteLock();
+
+    private record Worker(PDDocument doc, PDFRenderer renderer) {}
+
+    private int nextToSubmit;
+    private volatile boolean closed;
+
+    PdfPageStream(PDDocument first, DocumentOpener opener, PageRenderer pageRenderer, ExecutorService executor,
+                  int[] pageIndexes, int window, int maxRenderers) {
+        this.opener = opener;
+        this.pageRenderer = pageRenderer;
+        this.executor = executor;
+        this.pageIndexes = pageIndexes;
+        this.window = Math.max(1, window);
+        this.maxRenderers = Math.max(1, Math.min(maxRenderers, Math.min(this.window, pageIndexes.length)));
+
+        documents.add(first);
+        idleWorkers.add(new Worker(first, PdfUtils.newRenderer(first)));
+        fill();
+    }
+
+    public int size() {
+        return pageIndexes.length;
+    }
+
+    public boolean hasNext() {
+        return !inFlight.isEmpty();
+    }
+
+    public PdfUtils.RenderedPage next() throws IOException {
+        Future<PdfUtils.RenderedPage> head = inFlight.pollFirst();
+        if (head == null) throw new NoSuchElementException();
+        try {
+            PdfUtils.RenderedPage page = head.get();
+            fill();
+            return page;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Rendering PDF interrotto", e);
+        } catch (ExecutionException e) {
+            throw PdfUtils.asIOException(e.getCause());
+        }
+    }
+
+    private void fill() {
+        while (inFlight.size() < window && nextToSubmit < pageIndexes.length) {
+            int pageIndex = pageIndexes[nextToSubmit++];
+            inFlight.addLast(executor.submit(() -> renderGuarded(pageIndex)));
+        }
+    }
+
+    private PdfUtils.RenderedPage renderGuarded(int pageIndex) throws IOException {
+        lifecycle.readLock().lock();
+        try {
+            if (closed) throw new CancellationException("Stream chiuso");
+            Worker worker = borrowWorker();
+            try {
+                return pageRenderer.render(worker.doc(), worker.renderer(), pageIndex);
+            } finally {
+                idleWorkers.add(worker);
+            }
+        } finally {
+            lifecycle.readLock().unlock();
+        }
+    }
+
+    private Worker borrowWorker() throws IOException {
+        Worker worker = idleWorkers.poll();
+        if (worker != null) return worker;
+        synchronized (documents) {
+            worker = idleWorkers.poll();
+            if (worker != null) return worker;
+            if (documents.size() >= maxRenderers) {
+                // non dovrebbe accadere: i task attivi dello stream sono al massimo maxRenderers
+                throw new IllegalStateException("Nessun renderer disponibile");
+            }
+            PDDocument doc = opener.open();
+            documents.add(doc);
+            return new Worker(doc, PdfUtils.newRenderer(doc));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        inFlight.forEach(f -> f.cancel(false));
+        inFlight.clear();
+
+        // attende che i render in corso rilascino i documenti prima di chiuderli
+        lifecycle.writeLock().lock();
+        try {
+            closed = true;
+        } finally {
+            lifecycle.writeLock().unlock();
+        }
+
+        IOException failure = null;
+        synchronized (documents) {
+            for (PDDocument doc : documents) {
+                try {
+                    doc.close();
+                } catch (IOException e) {
+                    if (failure == null) failure = e;
+                }
+            }
+            documents.clear();
+        }
+        idleWorkers.clear();
+        if (failure != null) throw failure;
+    }
+}
@@ -0,0 +1,56 @@
+package it.piero.notiva.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.io.RandomAccessStreamCache.StreamCacheCreateFunction;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// PDF da analizzare: in memoria se piccolo, altrimenti su file temporaneo (cancellato alla close)
+@Slf4j
+public final class PdfSource implements AutoCloseable {
+
+    private final byte[] bytes;
+    private final Path file;
+    private final StreamCacheCreateFunction scratch;
+
+    private PdfSource(byte[] bytes, Path file, StreamCacheCreateFunction scratch) {
+        this.bytes = bytes;
+        this.file = file;
+        this.scratch = scratch;
+    }
+
+    static PdfSource inMemory(byte[] bytes, StreamCacheCreateFunction scratch) {
+        return new PdfSource(bytes, null, scratch);
+    }
+
+    static PdfSource onTempFile(Path file, StreamCacheCreateFunction scratch) {
+        return new PdfSource(null, file, scratch);
+    }
+
+    public boolean isOnDisk() {
+        return file != null;
+    }
+
+    // ogni chiamata restituisce un documento indipendente: PDDocument non è thread-safe
+    public PDDocument open() throws IOException {
+        if (file != null) {
+            return Loader.loadPDF(file.toFile(), scratch);
+        }
+        return Loader.loadPDF(bytes, "", null, null, scratch);
+    }
+
+    @Override
+    public void close() {
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.warn("Impossibile cancellare il file temporaneo {}", file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package it.piero.notiva.utils;
+
+import it.piero.notiva.model.BBox;
+import it.piero.notiva.model.DocUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.apache.pdfbox.text.TextPosition;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+@Slf4j
+@Component
+public class PdfTextLayerUtils {
+
+    private final boolean enabled;
+    private final int minChars;
+    private final int minCharsWithImages;
+    private final double maxGarbageRatio;
+
+    public PdfTextLayerUtils(@Value("${notiva.textLayer.enabled:true}") boolean enabled,
+                             @Value("${notiva.textLayer.minChars:32}") int minChars,
+                             @Value("${notiva.textLayer.minCharsWithImages:200}") int minCharsWithImages,
+                             @Value("${notiva.textLayer.maxGarbageRatio:0.10}") double maxGarbageRatio) {
+        this.enabled = enabled;
+        this.minChars = minChars;
+        this.minCharsWithImages = minCharsWithImages;
+        this.maxGarbageRatio = maxGarbageRatio;
+    }
+
+    // unitsByPage: pagine (1-based) risolte dal text layer; ocrPageIndexes: pagine (0-based) da mandare a Textract
+    public record TextLayer(Map<Integer, List<DocUnit>> unitsByPage, int[] ocrPageIndexes) {}
+
+    public TextLayer extract(PdfSource source, String origin) throws IOException {
+        try (PDDocument doc = source.open()) {
+            int pageCount = doc.getNumberOfPages();
+            if (!enabled) {
+                return new TextLayer(Map.of(), allPages(pageCount));
+            }
+
+            Map<Integer, List<DocUnit>> unitsByPage = new TreeMap<>();
+            List<Integer> ocr = new ArrayList<>();
+
+            LineCollector collector = new LineCollector();
+            for (int i = 0; i < pageCount; i++) {
+                int pageNumber = i + 1;
+                List<TextLine> lines = collector.collect(doc, pageNumber);
+
+                if (!isUsable(doc.getPage(i), lines)) {
+                    ocr.add(i);
+                    continue;
+                }
+
+                List<DocUnit> units = new ArrayList<>(lines.size());
+                for (TextLine line : lines) {
+                    BBox box = line.bbox();
+                    units.add(DocUnit.textUnit("LINE", pageNumber, box, line.text(), null, null,
+                            RegionUtils.from(box), origin));
+                }
+                units.sort(Comparator.comparing((DocUnit u) -> u.getBbox().getTop())
+                        .thenComparing(u -> u.getBbox().getLeft()));
+                unitsByPage.put(pageNumber, units);
+            }
+
+            log.info("Text layer: {} pagine native, {} pagine da OCR", unitsByPage.size(), ocr.size());
+            return new TextLayer(unitsByPage, ocr.stream().mapToInt(Integer::intValue).toArray());
+        }
+    }
+
+    private boolean isUsable(PDPage page, List<TextLine> lines) throws IOException {
+        int chars = 0;
+        int garbage = 0;
+        for (TextLine line : lines) {
+            String t = line.text();
+            for (int k = 0; k < t.length(); k++) {
+                char c = t.charAt(k);
+                if (Character.isWhitespace(c)) continue;
+                chars++;
+                if (c == '�' || Character.isISOControl(c)
+                        || Character.getType(c) == Character.PRIVATE_USE) {
+                    garbage++;
+                }
+            }
+        }
+        if (chars < minChars) return false;
+        if ((double) garbage / chars > maxGarbageRatio) return false;
+        // scansioni con poco testo sovrapposto (timbri, intestazioni): meglio l'OCR dell'immagine
+        return chars >= minCharsWithImages || !PdfUtils.hasImages(page);
+    }
+
+    private static int[] allPages(int pageCount) {
+        int[] pages = new int[pageCount];
+        for (int i = 0; i < pageCount; i++) pages[i] = i;
+        return pages;
+    }
+
+    private record TextLine(String text, BBox bbox) {}
+
+    private static final class LineCollector extends PDFTextStripper {
+
+        private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+        private final List<TextLine> lines = new ArrayList<>();
+        private final StringBuilder text = new StringBuilder();
+        private float minX, minY, maxX, maxY;
+        private float pageWidth, pageHeight;
+
+        LineCollector() {
+            setSortByPosition(true);
+            setSuppressDuplicateOverlappingText(true);
+        }
+
+        List<TextLine> collect(PDDocument doc, int pageNumber) throws IOException {
+            lines.clear();
+            resetLine();
+            setStartPage(pageNumber);
+            setEndPage(pageNumber);
+            getText(doc);
+            flushLine();
+            return new ArrayList<>(lines);
+        }
+
+        @Override
+        protected void writeString(String s, List<TextPosition> positions) {
+            text.append(s);
+            for (TextPosition p : positions) {
+                pageWidth = p.getPageWidth();
+                pageHeight = p.getPageHeight();
+                float x = p.getXDirAdj();
+                float y = p.getYDirAdj();
+                minX = Math.min(minX, x);
+                maxX = Math.max(maxX, x + p.getWidthDirAdj());
+                minY = Math.min(minY, y - p.getHeightDir());
+                maxY = Math.max(maxY, y);
+            }
+        }
+
+        @Override
+        protected void writeWordSeparator() {
+            text.append(' ');
+        }
+
+        @Override
+        protected void writeLineSeparator() {
+            flushLine();
+        }
+
+        private void flushLine() {
+            String t = WHITESPACE.matcher(text).replaceAll(" ").trim();
+            if (!t.isEmpty() && pageWidth > 0 && pageHeight > 0 && maxX > minX) {
+                lines.add(new TextLine(t, BBox.builder()
+                        .left(clamp01(minX / pageWidth))
+                        .top(clamp01(minY / pageHeight))
+                        .width(clamp01((maxX - minX) / pageWidth))
+                        .height(clamp01((maxY - minY) / pageHeight))
+                        .build()));
+            }
+            resetLine();
+        }
+
+        private void resetLine() {
+            text.setLength(0);
+            minX = Float.MAX_VALUE;
+            minY = Float.MAX_VALUE;
+            maxX = -Float.MAX_VALUE;
+            maxY = -Float.MAX_VALUE;
+        }
+
+        private static float clamp01(float v) {
+            return Math.max(0f, Math.min(1f, v));
+        }
+    }
+}
@@ -1,10 +1,25 @@
 package it.piero.notiva.utils;
 
-import org.apache.pdfbox.Loader;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.io.RandomAccessStreamCache.StreamCacheCreateFunction;
+import org.apache.pdfbox.contentstream.PDContentStream;
+import org.apache.pdfbox.contentstream.operator.Operator;
+import org.apache.pdfbox.contentstream.operator.OperatorName;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdfparser.PDFStreamParser;
 import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.graphics.PDXObject;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
 import org.apache.pdfbox.rendering.PDFRenderer;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.springframework.web.multipart.MultipartFile;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
@@ -14,43 +29,168 @@ import javax.imageio.stream.ImageOutputStream;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
+@Slf4j
 @Component
 public class PdfUtils {
 
-    public List<byte[]> renderPdfToImages(byte[] pdfBytes, int dpi) throws IOException {
+    private final RenderPolicy renderPolicy;
+    private final int renderThreads;
+    private final ExecutorService renderExecutor;
+    private final long diskThreshold;
+    private final StreamCacheCreateFunction scratch;
 
-        try (PDDocument doc = Loader.loadPDF(pdfBytes)) {
+    public PdfUtils(RenderPolicy renderPolicy,
+                    @Value("${notiva.pdf.renderThreads:0}") int renderThreads,
+                    @Value("${notiva.pdf.diskThreshold:20971520}") long diskThreshold,
+                    @Value("${notiva.pdf.scratchMemory:16777216}") long scratchMemory) {
+        this.renderPolicy = renderPolicy;
+        this.diskThreshold = diskThreshold;
+        // buffer di lavoro PDFBox limitati in memoria, il resto va su file temporanei
+        this.scratch = MemoryUsageSetting.setupMixed(scratchMemory).streamCache;
+        this.renderThreads = renderThreads > 0 ? renderThreads : Runtime.getRuntime().availableProcessors();
+        this.renderExecutor = Executors.newFixedThreadPool(this.renderThreads, renderThreadFactory());
+        log.info("Rendering PDF con {} worker", this.renderThreads);
+    }
 
-            PDFRenderer renderer = new PDFRenderer(doc);
-            renderer.setSubsamplingAllowed(false);
+    @PreDestroy
+    void shutdown() {
+        renderExecutor.shutdownNow();
+    }
 
-            List<byte[]> pages = new ArrayList<>();
-            for (int i = 0; i < doc.getNumberOfPages(); i++) {
-                BufferedImage img = renderer.renderImageWithDPI(i, dpi, ImageType.RGB);
+    public record RenderedPage(int pageNumber, byte[] bytes, PageSignature signature) {}
 
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
-                ImageOutputStream ios = ImageIO.createImageOutputStream(baos);
-                writer.setOutput(ios);
-                ImageWriteParam param = writer.getDefaultWriteParam();
+    public PdfSource source(MultipartFile file) throws IOException {
+        if (file.getSize() <= diskThreshold) {
+            return PdfSource.inMemory(file.getBytes(), scratch);
+        }
+        Path tmp = Files.createTempFile("notiva-", ".pdf");
+        try {
+            file.transferTo(tmp);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        log.info("PDF {} ({} byte) caricato da file temporaneo", file.getOriginalFilename(), file.getSize());
+        return PdfSource.onTempFile(tmp, scratch);
+    }
 
-                if (param.canWriteCompressed()) {
-                    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-                    param.setCompressionQuality(0.8f);
-                }
+    public PdfSource source(byte[] pdfBytes) {
+        return PdfSource.inMemory(pdfBytes, scratch);
+    }
 
-                writer.write(null, new IIOImage(img, null, null), param);
-                writer.dispose();
-                ios.close();
+    public List<byte[]> renderPdfToImages(byte[] pdfBytes, int dpi) throws IOException {
 
-                pages.add(baos.toByteArray());
+        try (PdfPageStream stream = openPageStream(source(pdfBytes), dpi, Integer.MAX_VALUE)) {
+            List<byte[]> pages = new ArrayList<>(stream.size());
+            while (stream.hasNext()) {
+                pages.add(stream.next().bytes());
             }
             return pages;
         }
     }
 
+    public PdfPageStream openPageStream(PdfSource source, int dpi, int window) throws IOException {
+        return openPageStream(source, dpi, window, null);
+    }
+
+    public PdfPageStream openPageStream(PdfSource source, int maxDpi, int window, int[] pageIndexes) throws IOException {
+        PDDocument first = source.open();
+        try {
+            int[] pages = pageIndexes != null
+                    ? pageIndexes
+                    : IntStream.range(0, first.getNumberOfPages()).toArray();
+            return new PdfPageStream(
+                    first,
+                    source::open,
+                    (doc, renderer, pageIndex) -> renderPolicy.render(doc, renderer, pageIndex, maxDpi),
+                    renderExecutor,
+                    pages,
+                    window,
+                    renderThreads
+            );
+        } catch (RuntimeException e) {
+            first.close();
+            throw e;
+        }
+    }
+
+    static PDFRenderer newRenderer(PDDocument doc) {
+        PDFRenderer renderer = new PDFRenderer(doc);
+        renderer.setSubsamplingAllowed(false);
+        return renderer;
+    }
+
+    // immagini XObject, anche dentro i Form XObject (tipico degli scanner), e immagini inline (BI/ID/EI)
+    static boolean hasImages(PDPage page) throws IOException {
+        return hasImages(page.getResources(), new HashSet<>()) || hasInlineImage(page);
+    }
+
+    private static boolean hasImages(PDResources resources, Set<COSBase> visited) throws IOException {
+        if (resources == null) return false;
+        for (COSName name : resources.getXObjectNames()) {
+            PDXObject xobject = resources.getXObject(name);
+            if (xobject instanceof PDImageXObject) return true;
+            // i form possono richiamarsi a vicenda: ognuno si visita una volta sola
+            if (xobject instanceof PDFormXObject form && visited.add(form.getCOSObject())) {
+                if (hasInlineImage(form) || hasImages(form.getResources(), visited)) return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasInlineImage(PDContentStream content) throws IOException {
+        PDFStreamParser parser = new PDFStreamParser(content);
+        for (Object token = parser.parseNextToken(); token != null; token = parser.parseNextToken()) {
+            if (token instanceof Operator op && OperatorName.BEGIN_INLINE_IMAGE.equals(op.getName())) return true;
+        }
+        return false;
+    }
+
+    static byte[] encodePng(BufferedImage img) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(baos)) {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+
+            if (param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(0.8f);
+            }
+
+            writer.write(null, new IIOImage(img, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return baos.toByteArray();
+    }
+
+    static IOException asIOException(Throwable t) {
+        if (t instanceof IOException io) return io;
+        if (t instanceof RuntimeException re) throw re;
+        if (t instanceof Error err) throw err;
+        return new IOException("Rendering PDF fallito", t);
+    }
+
+    private static ThreadFactory renderThreadFactory() {
+        AtomicInteger seq = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, "pdf-render-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
 
 }
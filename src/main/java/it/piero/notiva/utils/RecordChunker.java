@@ -0,0 +1,109 @@
+package it.piero.notiva.utils;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.piero.notiva.model.DocUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.tokenizer.JTokkitTokenCountEstimator;
+import org.springframework.ai.tokenizer.TokenCountEstimator;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+// Divide i record in blocchi allineati alle pagine sotto un budget di token: una pagina non viene spezzata
+// salvo che da sola superi il budget.
+@Slf4j
+@Component
+public class RecordChunker {
+
+    private final ObjectMapper mapper;
+    private final TokenCountEstimator estimator = new JTokkitTokenCountEstimator();
+
+    // il budget si misura nello stesso formato con cui i record finiscono nel prompt
+    private final boolean compactRecords;
+
+    public RecordChunker(ObjectMapper mapper, @Value("${notiva.llm.compactRecords:true}") boolean compactRecords) {
+        this.mapper = mapper;
+        this.compactRecords = compactRecords;
+    }
+
+    public int estimateTokens(List<DocUnit> records) {
+        return estimateTokens(compactRecords ? CompactRecordEncoder.encodeRecords(records) : json(records));
+    }
+
+    public int estimateTokens(String text) {
+        return estimator.estimate(text);
+    }
+
+    public List<List<DocUnit>> chunk(List<DocUnit> records, int tokenBudget) {
+        List<List<DocUnit>> chunks = new ArrayList<>();
+        List<DocUnit> current = new ArrayList<>();
+        int currentTokens = 0;
+
+        for (List<DocUnit> page : byPage(records)) {
+            int pageTokens = estimateTokens(page);
+
+            if (pageTokens > tokenBudget) {
+                log.debug("Pagina {} di {} oltre il budget ({} token), la divido per record",
+                        page.get(0).getPage(), page.get(0).getOrigin(), pageTokens);
+                if (!current.isEmpty()) {
+                    chunks.add(current);
+                    current = new ArrayList<>();
+                    currentTokens = 0;
+                }
+                chunks.addAll(splitPage(page, tokenBudget));
+                continue;
+            }
+
+            if (currentTokens + pageTokens > tokenBudget && !current.isEmpty()) {
+                chunks.add(current);
+                current = new ArrayList<>();
+                currentTokens = 0;
+            }
+            current.addAll(page);
+            currentTokens += pageTokens;
+        }
+        if (!current.isEmpty()) chunks.add(current);
+        return chunks;
+    }
+
+    private List<List<DocUnit>> splitPage(List<DocUnit> page, int tokenBudget) {
+        List<List<DocUnit>> out = new ArrayList<>();
+        List<DocUnit> current = new ArrayList<>();
+        int currentTokens = 0;
+        for (DocUnit u : page) {
+            int t = estimateTokens(List.of(u));
+            if (currentTokens + t > tokenBudget && !current.isEmpty()) {
+                out.add(current);
+                current = new ArrayList<>();
+                currentTokens = 0;
+            }
+            current.add(u);
+            currentTokens += t;
+        }
+        if (!current.isEmpty()) out.add(current);
+        return out;
+    }
+
+    // pagine consecutive per file, nell'ordine dei record
+    private static List<List<DocUnit>> byPage(List<DocUnit> records) {
+        Map<String, List<DocUnit>> pages = new LinkedHashMap<>();
+        for (DocUnit u : records) {
+            pages.computeIfAbsent(Objects.toString(u.getOrigin(), "") + "#" + u.getPage(), k -> new ArrayList<>()).add(u);
+        }
+        return new ArrayList<>(pages.values());
+    }
+
+    private String json(Object o) {
+        try {
+            return mapper.writeValueAsString(o);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Serializzazione JSON fallita", e);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package it.piero.notiva.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+@Slf4j
+@Component
+public class RenderPolicy {
+
+    public enum ColorMode { AUTO, RGB, GRAY, BINARY }
+
+    // limite Textract per i lati dell'immagine
+    private static final int MAX_SIDE_PX = 10_000;
+
+    private final ColorMode colorMode;
+    private final int minDpi;
+    private final long maxPixels;
+    private final long maxBytes;
+
+    public RenderPolicy(@Value("${notiva.render.colorMode:AUTO}") ColorMode colorMode,
+                        @Value("${notiva.render.minDpi:150}") int minDpi,
+                        @Value("${notiva.render.maxPixels:9000000}") long maxPixels,
+                        @Value("${notiva.render.maxBytes:5000000}") long maxBytes) {
+        this.colorMode = colorMode;
+        this.minDpi = minDpi;
+        this.maxPixels = maxPixels;
+        this.maxBytes = maxBytes;
+    }
+
+    public record Settings(int dpi, ImageType imageType) {}
+
+    public Settings choose(PDPage page, int maxDpi) throws IOException {
+        PDRectangle box = page.getCropBox();
+        float wIn = box.getWidth() / 72f;
+        float hIn = box.getHeight() / 72f;
+
+        int dpi = maxDpi;
+        if (wIn > 0 && hIn > 0) {
+            // pagine grandi (A3, disegni): DPI ridotti per restare entro il budget di pixel
+            dpi = Math.min(dpi, (int) Math.sqrt(maxPixels / (wIn * hIn)));
+            dpi = Math.min(dpi, (int) (MAX_SIDE_PX / Math.max(wIn, hIn)));
+        }
+        dpi = Math.max(Math.min(minDpi, maxDpi), dpi);
+
+        return new Settings(dpi, imageType(page));
+    }
+
+    public PdfUtils.RenderedPage render(PDDocument doc, PDFRenderer renderer, int pageIndex, int maxDpi) throws IOException {
+        Settings settings = choose(doc.getPage(pageIndex), maxDpi);
+        BufferedImage img = renderer.renderImageWithDPI(pageIndex, settings.dpi(), settings.imageType());
+        byte[] png = PdfUtils.encodePng(img);
+
+        // oltre il budget: riduce i DPI in proporzione, poi come ultima risorsa passa a bianco/nero
+        while (png.length > maxBytes && settings.dpi() > minDpi) {
+            int dpi = (int) (settings.dpi() * Math.sqrt((double) maxBytes / png.length) * 0.95);
+            settings = new Settings(Math.max(minDpi, Math.min(dpi, settings.dpi() - 1)), settings.imageType());
+            img = renderer.renderImageWithDPI(pageIndex, settings.dpi(), settings.imageType());
+            png = PdfUtils.encodePng(img);
+        }
+        if (png.length > maxBytes && settings.imageType() != ImageType.BINARY) {
+            settings = new Settings(settings.dpi(), ImageType.BINARY);
+            img = renderer.renderImageWithDPI(pageIndex, settings.dpi(), settings.imageType());
+            png = PdfUtils.encodePng(img);
+        }
+        if (png.length > maxBytes) {
+            log.warn("Pagina {}: immagine di {} byte oltre il budget di {} byte", pageIndex + 1, png.length, maxBytes);
+        }
+
+        log.debug("Pagina {}: {} DPI {} -> {} byte", pageIndex + 1, settings.dpi(), settings.imageType(), png.length);
+        return new PdfUtils.RenderedPage(pageIndex + 1, png, PageSignature.of(img));
+    }
+
+    private ImageType imageType(PDPage page) throws IOException {
+        return switch (colorMode) {
+            case RGB -> ImageType.RGB;
+            case GRAY -> ImageType.GRAY;
+            case BINARY -> ImageType.BINARY;
+            // senza immagini raster la pagina è testo/vettoriale: il bianco/nero basta all'OCR
+            case AUTO -> PdfUtils.hasImages(page) ? ImageType.GRAY : ImageType.BINARY;
+        };
+    }
+}
@@ -0,0 +1,257 @@
+package it.piero.notiva.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Cache a due livelli indirizzata per contenuto: LRU in memoria davanti a una directory su disco limitata in byte.
+// Le chiavi sono hash esadecimali, quindi usabili direttamente come nomi di file.
+// Con una ttl le voci scadono dopo quel tempo dalla scrittura, su entrambi i livelli.
+@Slf4j
+public final class TieredCache<V> {
+
+    public interface Codec<V> {
+        byte[] encode(V value) throws IOException;
+        V decode(byte[] bytes) throws IOException;
+    }
+
+    public record Stats(String name, long memoryHits, long diskHits, long misses, long puts,
+                        long memoryEvictions, long diskEvictions, long expirations,
+                        int memoryEntries, int diskEntries, long diskBytes) {}
+
+    private record Timed<V>(V value, long writtenAt) {}
+
+    private record DiskEntry(long size, long writtenAt) {}
+
+    private static final String SUFFIX = ".bin";
+
+    private final String name;
+    private final Codec<V> codec;
+    private final Path dir;
+    private final long maxDiskBytes;
+    private final long ttlMillis;
+
+    private final LinkedHashMap<String, Timed<V>> memory;
+    // indice del disco in ordine di accesso: la testa è la voce usata meno di recente
+    private final LinkedHashMap<String, DiskEntry> disk = new LinkedHashMap<>(16, 0.75f, true);
+    private long diskBytes;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong puts = new AtomicLong();
+    private final AtomicLong memoryEvictions = new AtomicLong();
+    private final AtomicLong diskEvictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    // dir null: solo livello in memoria
+    public TieredCache(String name, int maxMemoryEntries, Path dir, long maxDiskBytes, Codec<V> codec) {
+        this(name, maxMemoryEntries, dir, maxDiskBytes, null, codec);
+    }
+
+    // ttl null o zero: le voci non scadono
+    public TieredCache(String name, int maxMemoryEntries, Path dir, long maxDiskBytes, Duration ttl, Codec<V> codec) {
+        this.name = name;
+        this.codec = codec;
+        this.dir = dir;
+        this.maxDiskBytes = maxDiskBytes;
+        this.ttlMillis = ttl == null || ttl.isNegative() ? 0 : ttl.toMillis();
+        this.memory = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Timed<V>> eldest) {
+                if (size() <= maxMemoryEntries) return false;
+                memoryEvictions.incrementAndGet();
+                return true;
+            }
+        };
+        if (dir != null) {
+            loadIndex();
+        }
+    }
+
+    public V get(String key) {
+        long now = System.currentTimeMillis();
+        synchronized (memory) {
+            Timed<V> hit = memory.get(key);
+            if (hit != null && !expired(hit.writtenAt(), now)) {
+                memoryHits.incrementAndGet();
+                return hit.value();
+            }
+            if (hit != null) {
+                memory.remove(key);
+                expirations.incrementAndGet();
+            }
+        }
+
+        Timed<V> fromDisk = readDisk(key, now);
+        if (fromDisk == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        diskHits.incrementAndGet();
+        synchronized (memory) {
+            memory.put(key, fromDisk);
+        }
+        return fromDisk.value();
+    }
+
+    public void put(String key, V value) {
+        if (value == null) return;
+        puts.incrementAndGet();
+        long now = System.currentTimeMillis();
+        synchronized (memory) {
+            memory.put(key, new Timed<>(value, now));
+        }
+        writeDisk(key, value, now);
+    }
+
+    public Stats stats() {
+        int memoryEntries;
+        synchronized (memory) {
+            memoryEntries = memory.size();
+        }
+        int diskEntries;
+        long bytes;
+        synchronized (disk) {
+            diskEntries = disk.size();
+            bytes = diskBytes;
+        }
+        return new Stats(name, memoryHits.get(), diskHits.get(), misses.get(), puts.get(),
+                memoryEvictions.get(), diskEvictions.get(), expirations.get(), memoryEntries, diskEntries, bytes);
+    }
+
+    private boolean expired(long writtenAt, long now) {
+        return ttlMillis > 0 && now - writtenAt >= ttlMillis;
+    }
+
+    private void loadIndex() {
+        try {
+            Files.createDirectories(dir);
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+                ds.forEach(files::add);
+            }
+            // al riavvio l'ordine LRU si ricostruisce dall'ultima modifica (aggiornata a ogni hit);
+            // con una ttl l'ultima modifica resta quella della scrittura e fa da data di nascita della voce
+            List<Map.Entry<Path, FileTime>> dated = new ArrayList<>(files.size());
+            for (Path p : files) {
+                dated.add(Map.entry(p, Files.getLastModifiedTime(p)));
+            }
+            dated.sort(Map.Entry.comparingByValue(Comparator.naturalOrder()));
+            synchronized (disk) {
+                for (Map.Entry<Path, FileTime> e : dated) {
+                    String file = e.getKey().getFileName().toString();
+                    long size = Files.size(e.getKey());
+                    disk.put(file.substring(0, file.length() - SUFFIX.length()), new DiskEntry(size, e.getValue().toMillis()));
+                    diskBytes += size;
+                }
+                evictDisk();
+            }
+            log.info("Cache {}: {} voci su disco ({} byte) in {}", name, disk.size(), diskBytes, dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Impossibile inizializzare la cache " + name + " in " + dir, e);
+        }
+    }
+
+    private Timed<V> readDisk(String key, long now) {
+        if (dir == null) return null;
+        DiskEntry entry;
+        synchronized (disk) {
+            entry = disk.get(key);
+        }
+        if (entry == null) return null;
+        Path file = dir.resolve(key + SUFFIX);
+        if (expired(entry.writtenAt(), now)) {
+            expirations.incrementAndGet();
+            forget(key);
+            deleteQuietly(file);
+            return null;
+        }
+        try {
+            V value = codec.decode(Files.readAllBytes(file));
+            if (ttlMillis == 0) Files.setLastModifiedTime(file, FileTime.fromMillis(now));
+            return new Timed<>(value, entry.writtenAt());
+        } catch (NoSuchFileException e) {
+            forget(key);
+            return null;
+        } catch (IOException | RuntimeException e) {
+            // voce corrotta o troncata: si scarta e si ricalcola
+            log.warn("Cache {}: voce {} illeggibile, la scarto", name, key, e);
+            forget(key);
+            deleteQuietly(file);
+            return null;
+        }
+    }
+
+    private void writeDisk(String key, V value, long now) {
+        if (dir == null) return;
+        Path file = dir.resolve(key + SUFFIX);
+        Path tmp = null;
+        try {
+            byte[] bytes = codec.encode(value);
+            if (bytes.length > maxDiskBytes) return;
+
+            tmp = Files.createTempFile(dir, key, ".tmp");
+            Files.write(tmp, bytes);
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            Files.setLastModifiedTime(file, FileTime.fromMillis(now));
+
+            synchronized (disk) {
+                DiskEntry previous = disk.put(key, new DiskEntry(bytes.length, now));
+                diskBytes += bytes.length - (previous == null ? 0 : previous.size());
+                evictDisk();
+            }
+        } catch (IOException e) {
+            log.warn("Cache {}: scrittura su disco fallita per {}", name, key, e);
+            if (tmp != null) deleteQuietly(tmp);
+        }
+    }
+
+    // chiamato con il lock su disk
+    private void evictDisk() {
+        Iterator<Map.Entry<String, DiskEntry>> it = disk.entrySet().iterator();
+        while (diskBytes > maxDiskBytes && it.hasNext()) {
+            Map.Entry<String, DiskEntry> eldest = it.next();
+            deleteQuietly(dir.resolve(eldest.getKey() + SUFFIX));
+            diskBytes -= eldest.getValue().size();
+            it.remove();
+            diskEvictions.incrementAndGet();
+        }
+    }
+
+    private void forget(String key) {
+        synchronized (disk) {
+            DiskEntry entry = disk.remove(key);
+            if (entry != null) diskBytes -= entry.size();
+        }
+    }
+
+    private void deleteQuietly(Path p) {
+        try {
+            Files.deleteIfExists(p);
+        } catch (IOException e) {
+            log.debug("Cache {}: impossibile cancellare {}", name, p, e);
+        }
+    }
+}
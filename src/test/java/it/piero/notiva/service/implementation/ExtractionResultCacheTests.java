@@ -0,0 +1,98 @@
+package it.piero.notiva.service.implementation;
+
+import it.piero.notiva.model.ExtractionItem;
+import it.piero.notiva.model.ExtractionResult;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ExtractionResultCacheTests {
+
+    @TempDir
+    Path dir;
+
+    private static ExtractionResult result() {
+        ExtractionItem item = ExtractionItem.builder()
+                .name("Importo")
+                .value("€ 126.000,00")
+                .status("OK")
+                .confidence(0.97)
+                .alternatives(List.of())
+                .build();
+        return ExtractionResult.builder().extractions(List.of(item)).build();
+    }
+
+    private static boolean bypassWith(String header) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        if (header != null) request.addHeader(ExtractionResultCache.BYPASS_HEADER, header);
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+        try {
+            return ExtractionResultCache.bypassRequested();
+        } finally {
+            RequestContextHolder.resetRequestAttributes();
+        }
+    }
+
+    @Test
+    void keysDependOnModelPromptAndPayload() {
+        ExtractionResultCache cache = new ExtractionResultCache(4, Duration.ofHours(1), null, 0);
+        byte[] payload = "record".getBytes(StandardCharsets.UTF_8);
+        String key = cache.key("gpt-4.1-mini", "prompt", payload);
+
+        assertEquals(key, cache.key("gpt-4.1-mini", "prompt", payload.clone()));
+        assertNotEquals(key, cache.key("gpt-4.1", "prompt", payload));
+        assertNotEquals(key, cache.key("gpt-4.1-mini", "prompt v2", payload));
+        assertNotEquals(key, cache.key("gpt-4.1-mini", "prompt", "record 2".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void keepsResultsAcrossRestart() {
+        ExtractionResultCache before = new ExtractionResultCache(4, Duration.ofHours(1), dir.toString(), 1_000_000);
+        String key = before.key("gpt-4.1-mini", "prompt", new byte[]{1, 2, 3});
+        before.put(key, result());
+
+        ExtractionResultCache after = new ExtractionResultCache(4, Duration.ofHours(1), dir.toString(), 1_000_000);
+        ExtractionResult cached = after.get(key);
+
+        assertNotNull(cached);
+        assertEquals(result(), cached);
+        assertEquals(1, after.stats().diskHits());
+    }
+
+    @Test
+    void expiresResultsAfterTheTtl() throws InterruptedException {
+        ExtractionResultCache cache = new ExtractionResultCache(4, Duration.ofMillis(50), dir.toString(), 1_000_000);
+        String key = cache.key("gpt-4.1-mini", "prompt", new byte[]{1, 2, 3});
+        cache.put(key, result());
+        assertEquals(result(), cache.get(key));
+
+        Thread.sleep(100);
+        assertNull(cache.get(key));
+        assertEquals(2, cache.stats().expirations());
+        assertEquals(1, cache.stats().misses());
+    }
+
+    @Test
+    void bypassesOnlyOnTheHeader() {
+        assertTrue(bypassWith("bypass"));
+        assertTrue(bypassWith("NO-CACHE"));
+        assertFalse(bypassWith("refresh"));
+        assertFalse(bypassWith(null));
+        // fuori da una richiesta HTTP (batch, test) la cache resta attiva
+        assertFalse(ExtractionResultCache.bypassRequested());
+    }
+}
@@ -0,0 +1,120 @@
+package it.piero.notiva.service.implementation;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.piero.notiva.model.DocUnitTextRequest;
+import it.piero.notiva.model.ExtractionItem;
+import it.piero.notiva.model.ExtractionResult;
+import it.piero.notiva.utils.RecordChunker;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FastExtractionServiceTests {
+
+    private static final String VALID = """
+            {"extractions":[{"name":"Importo","value":"€ 1.000,00","evidence":{"page":1,"snippet":"Importo: € 1.000,00"},\
+            "status":"OK","confidence":0.9,"alternatives":[]}]}""";
+
+    // risponde con gli output indicati, nell'ordine, e tiene i prompt ricevuti
+    private static final class ScriptedChatModel implements ChatModel {
+
+        private final Deque<String> outputs;
+        private final List<Prompt> prompts = new ArrayList<>();
+
+        ScriptedChatModel(String... outputs) {
+            this.outputs = new ArrayDeque<>(List.of(outputs));
+        }
+
+        @Override
+        public ChatResponse call(Prompt prompt) {
+            prompts.add(prompt);
+            return new ChatResponse(List.of(new Generation(new AssistantMessage(outputs.poll()))));
+        }
+    }
+
+    private static FastExtractionService service(ChatModel model, int parseRetries) {
+        ObjectMapper mapper = new ObjectMapper();
+        DefaultListableBeanFactory beans = new DefaultListableBeanFactory();
+        FastExtractionService service = new FastExtractionService(ChatClient.builder(model), mapper, null,
+                new RecordChunker(mapper, true),
+                beans.getBeanProvider(RecordRelevanceFilter.class),
+                beans.getBeanProvider(ExtractionResultCache.class),
+                beans.getBeanProvider(RuleBasedExtractor.class),
+                beans.getBeanProvider(ModelCascade.class));
+        ReflectionTestUtils.setField(service, "parseRetries", parseRetries);
+        return service;
+    }
+
+    private static DocUnitTextRequest request() {
+        return DocUnitTextRequest.builder().records("Importo: € 1.000,00").notes("").build();
+    }
+
+    @Test
+    void repairsFencedOutput() {
+        assertEquals(VALID, FastExtractionService.repairJson("```json\n" + VALID + "\n```"));
+        assertEquals(VALID, FastExtractionService.repairJson("Ecco il risultato:\n" + VALID + "\nFine."));
+    }
+
+    // un oggetto troncato non si completa a mano: manca proprio il dato
+    @Test
+    void leavesTruncatedOrCleanOutputAlone() {
+        assertNull(FastExtractionService.repairJson(VALID.substring(0, VALID.length() / 2)));
+        assertNull(FastExtractionService.repairJson("```json\n" + VALID.substring(0, 40)));
+        assertNull(FastExtractionService.repairJson("nessun JSON"));
+        assertNull(FastExtractionService.repairJson(VALID));
+    }
+
+    @Test
+    void fencedOutputNeedsNoRetry() {
+        ScriptedChatModel model = new ScriptedChatModel("```json\n" + VALID + "\n```");
+
+        ExtractionResult result = service(model, 1).extractWithText(request());
+
+        assertEquals(1, model.prompts.size());
+        ExtractionItem item = result.getExtractions().get(0);
+        assertEquals("Importo", item.getName());
+        assertEquals("€ 1.000,00", item.getValue());
+    }
+
+    @Test
+    void retriesOnceWithHintThenSucceeds() {
+        ScriptedChatModel model = new ScriptedChatModel(VALID.substring(0, 60), VALID);
+
+        ExtractionResult result = service(model, 1).extractWithText(request());
+
+        assertEquals("€ 1.000,00", result.getExtractions().get(0).getValue());
+        assertEquals(2, model.prompts.size());
+        assertFalse(model.prompts.get(0).getSystemMessage().getText().contains("non era JSON valido"));
+        assertTrue(model.prompts.get(1).getSystemMessage().getText().contains("non era JSON valido"));
+        // stesso input utente: si ripete solo la chiamata al modello
+        assertEquals(model.prompts.get(0).getUserMessage().getText(), model.prompts.get(1).getUserMessage().getText());
+    }
+
+    @Test
+    void failsAfterTheRetry() {
+        ScriptedChatModel model = new ScriptedChatModel("non è JSON", VALID.substring(0, 60), VALID);
+
+        RuntimeException e = assertThrows(RuntimeException.class, () -> service(model, 1).extractWithText(request()));
+
+        assertTrue(e.getMessage().startsWith("Parse JSON fallito"));
+        assertTrue(e.getMessage().contains(VALID.substring(0, 60)));
+        assertEquals(2, model.prompts.size());
+    }
+}
@@ -0,0 +1,282 @@
+package it.piero.notiva.service.implementation;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.textract.model.Block;
+import software.amazon.awssdk.services.textract.model.BlockType;
+import software.amazon.awssdk.services.textract.model.BoundingBox;
+import software.amazon.awssdk.services.textract.model.Geometry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LineLayoutTextTests {
+
+    private static final Logger log = LoggerFactory.getLogger(LineLayoutTextTests.class);
+
+    // pagine nel formato JSON di DetectDocumentText, ridotte ai blocchi PAGE e LINE
+    private static final List<String> FIXTURES = List.of("textract/estratto-conto.json", "textract/modulo-anagrafica.json");
+    private static final int WARMUP_ROUNDS = 200;
+    private static final int MEASURED_ROUNDS = 1_000;
+
+    private static final String[] LABELS = {"Codice fiscale:", "IBAN", "Data di nascita", "TOTALE", "N.", "Importo:", "Intestatario del conto"};
+    private static final String[] VALUES = {"RSSMRA80A01H501U", "IT60 X054 2811 1010 0000 0123 456", "01/01/1980", "€ 1.234,56",
+            "Mario  Rossi", "VIA ROMA 1", "12", "saldo\tdisponibile", "a b 3", "\u0001 x "};
+
+    @Test
+    void matchesPreviousImplementation() {
+        Random rnd = new Random(3);
+        for (int i = 0; i < 300; i++) {
+            List<Block> page = randomPage(rnd, 5 + rnd.nextInt(120));
+            assertEquals(reference(page), new LineLayoutText().render(page), "pagina " + i);
+        }
+    }
+
+    @Test
+    void rendersLabelValueRows() {
+        List<Block> page = List.of(
+                line("Codice fiscale:", 0.05f, 0.10f, 0.20f),
+                line("RSSMRA80A01H501U", 0.40f, 0.101f, 0.25f),
+                line("Totale", 0.05f, 0.20f, 0.10f),
+                line("€ 12,00", 0.30f, 0.20f, 0.10f)
+        );
+
+        assertEquals("Codice fiscale: RSSMRA80A01H501U\nTotale: € 12,00", new LineLayoutText().render(page));
+    }
+
+    // pagine sintetiche con la densità di un estratto conto (~120 linee)
+    @Test
+    void matchesPreviousImplementationOnDensePages() {
+        Random rnd = new Random(11);
+        LineLayoutText engine = new LineLayoutText();
+        for (int i = 0; i < 200; i++) {
+            List<Block> page = randomPage(rnd, 120);
+            assertEquals(reference(page), engine.render(page), "pagina " + i);
+        }
+    }
+
+    @Test
+    void matchesPreviousImplementationOnRecordedPages() throws IOException {
+        for (String fixture : FIXTURES) {
+            List<Block> page = load(fixture);
+            assertEquals(reference(page), new LineLayoutText().render(page), fixture);
+        }
+    }
+
+    // solo su richiesta (-Dnotiva.benchmark=true): tempo per pagina sulle risposte registrate
+    @Test
+    @Tag("benchmark")
+    @EnabledIfSystemProperty(named = "notiva.benchmark", matches = "true")
+    void benchmarkRecordedPages() throws IOException {
+        LineLayoutText engine = new LineLayoutText();
+        for (String fixture : FIXTURES) {
+            List<Block> page = load(fixture);
+            int sink = 0;
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                sink += reference(page).length() - engine.render(page).length();
+            }
+            assertEquals(0, sink);
+
+            long t0 = System.nanoTime();
+            for (int i = 0; i < MEASURED_ROUNDS; i++) sink += reference(page).length();
+            long t1 = System.nanoTime();
+            for (int i = 0; i < MEASURED_ROUNDS; i++) sink -= engine.render(page).length();
+            long t2 = System.nanoTime();
+            assertEquals(0, sink);
+
+            log.info("{} ({} blocchi): precedente {} µs/pagina, LineLayoutText {} µs/pagina", fixture, page.size(),
+                    micros((t1 - t0) / MEASURED_ROUNDS), micros((t2 - t1) / MEASURED_ROUNDS));
+        }
+    }
+
+    private static List<Block> load(String resource) throws IOException {
+        JsonNode root;
+        try (InputStream in = LineLayoutTextTests.class.getClassLoader().getResourceAsStream(resource)) {
+            if (in == null) throw new IOException("Fixture mancante: " + resource);
+            root = new ObjectMapper().readTree(in);
+        }
+        List<Block> out = new ArrayList<>();
+        for (JsonNode b : root.path("Blocks")) {
+            Block.Builder block = Block.builder()
+                    .id(b.path("Id").asText(null))
+                    .blockType(b.path("BlockType").asText())
+                    .text(b.path("Text").asText(null))
+                    .page(b.path("Page").asInt(1));
+            if (b.has("Confidence")) block.confidence((float) b.get("Confidence").asDouble());
+            JsonNode bb = b.path("Geometry").path("BoundingBox");
+            if (!bb.isMissingNode()) {
+                block.geometry(Geometry.builder()
+                        .boundingBox(BoundingBox.builder()
+                                .left((float) bb.path("Left").asDouble())
+                                .top((float) bb.path("Top").asDouble())
+                                .width((float) bb.path("Width").asDouble())
+                                .height((float) bb.path("Height").asDouble())
+                                .build())
+                        .build());
+            }
+            out.add(block.build());
+        }
+        return out;
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1e3);
+    }
+
+    private static List<Block> randomPage(Random rnd, int lines) {
+        List<Block> out = new ArrayList<>();
+        float top = 0.02f;
+        while (out.size() < lines) {
+            top += 0.005f + rnd.nextFloat() * 0.02f;
+            int cells = 1 + rnd.nextInt(4);
+            float left = 0.02f + rnd.nextFloat() * 0.05f;
+            for (int c = 0; c < cells && out.size() < lines; c++) {
+                String text = rnd.nextBoolean()
+                        ? LABELS[rnd.nextInt(LABELS.length)]
+                        : VALUES[rnd.nextInt(VALUES.length)];
+                if (rnd.nextInt(30) == 0) text = "  ";
+                float width = 0.05f + rnd.nextFloat() * 0.2f;
+                out.add(line(text, left, top + (rnd.nextFloat() - 0.5f) * 0.01f, width));
+                left += width + rnd.nextFloat() * 0.12f;
+            }
+        }
+        Collections.shuffle(out, rnd);
+        return out;
+    }
+
+    private static Block line(String text, float left, float top, float width) {
+        return Block.builder()
+                .blockType(BlockType.LINE)
+                .text(text)
+                .geometry(Geometry.builder()
+                        .boundingBox(BoundingBox.builder().left(left).top(top).width(width).height(0.01f).build())
+                        .build())
+                .build();
+    }
+
+    // implementazione precedente di TextractServiceImpl.pageText, riportata come riferimento
+    private static String reference(List<Block> blocks) {
+        List<Block> lines = blocks.stream()
+                .filter(b -> b.blockType() == BlockType.LINE)
+                .filter(b -> b.geometry() != null && b.geometry().boundingBox() != null)
+                .sorted(Comparator
+                        .comparing((Block b) -> b.geometry().boundingBox().top())
+                        .thenComparing(b -> b.geometry().boundingBox().left()))
+                .collect(Collectors.toList());
+
+        final float yTol = 0.012f;
+        final float minGap = 0.06f;
+        final int labelMaxLen = 48;
+
+        List<List<Block>> rows = new ArrayList<>();
+        for (Block b : lines) {
+            float top = b.geometry().boundingBox().top();
+            if (rows.isEmpty()) {
+                rows.add(new ArrayList<>(Arrays.asList(b)));
+                continue;
+            }
+            List<Block> last = rows.get(rows.size() - 1);
+            float lastTop = last.get(0).geometry().boundingBox().top();
+            if (Math.abs(top - lastTop) <= yTol) {
+                last.add(b);
+            } else {
+                last.sort(Comparator.comparing(x -> x.geometry().boundingBox().left()));
+                rows.add(new ArrayList<>(Arrays.asList(b)));
+            }
+        }
+        if (!rows.isEmpty()) {
+            List<Block> last = rows.get(rows.size() - 1);
+            last.sort(Comparator.comparing(x -> x.geometry().boundingBox().left()));
+        }
+
+        StringBuilder pageOut = new StringBuilder();
+        for (List<Block> row : rows) {
+            List<String[]> cells = new ArrayList<>();
+            List<float[]> bounds = new ArrayList<>();
+            for (Block b : row) {
+                String t = b.text() == null ? "" : b.text().trim();
+                if (t.isEmpty()) continue;
+                BoundingBox bb = b.geometry().boundingBox();
+                cells.add(new String[]{t});
+                bounds.add(new float[]{bb.left(), bb.left() + bb.width()});
+            }
+            if (cells.isEmpty()) continue;
+
+            if (cells.size() == 1) {
+                pageOut.append(cells.get(0)[0]).append("\n");
+                continue;
+            }
+
+            List<String> mergedText = new ArrayList<>();
+            List<float[]> mergedBounds = new ArrayList<>();
+            String accT = cells.get(0)[0];
+            float[] acc = bounds.get(0);
+            for (int c = 1; c < cells.size(); c++) {
+                float[] nxt = bounds.get(c);
+                if (nxt[0] - acc[1] < minGap) {
+                    accT = (accT + " " + cells.get(c)[0]).replaceAll("\\s+", " ").trim();
+                    acc = new float[]{acc[0], Math.max(acc[1], nxt[1])};
+                } else {
+                    mergedText.add(accT);
+                    mergedBounds.add(acc);
+                    accT = cells.get(c)[0];
+                    acc = nxt;
+                }
+            }
+            mergedText.add(accT);
+            mergedBounds.add(acc);
+
+            if (mergedText.size() >= 2) {
+                boolean spaced = (mergedBounds.get(1)[0] - mergedBounds.get(0)[1]) >= minGap;
+                boolean labelish = referenceLabel(mergedText.get(0), labelMaxLen);
+                boolean valueish = referenceValue(mergedText.get(1));
+
+                if (spaced && (labelish || !valueish)) {
+                    StringBuilder rowOut = new StringBuilder();
+                    rowOut.append(LineLayoutText.stripTrailingColon(mergedText.get(0))).append(": ").append(mergedText.get(1));
+                    for (int c = 2; c < mergedText.size(); c++) {
+                        rowOut.append(" ").append(mergedText.get(c));
+                    }
+                    pageOut.append(rowOut.toString().replaceAll("\\s+", " ").trim()).append("\n");
+                    continue;
+                }
+            }
+
+            pageOut.append(String.join(" ", mergedText).replaceAll("\\s+", " ").trim()).append("\n");
+        }
+
+        return pageOut.toString().trim();
+    }
+
+    private static boolean referenceLabel(String s, int maxLen) {
+        String t = s.trim();
+        if (t.isEmpty()) return false;
+        if (t.endsWith(":")) return true;
+        if (t.length() <= 3) return true;
+        if (t.length() <= maxLen && t.equals(t.toUpperCase())) return true;
+        return !t.matches(".*\\d.*");
+    }
+
+    private static boolean referenceValue(String s) {
+        String t = s.trim();
+        if (t.isEmpty()) return false;
+        if (t.contains("€")) return true;
+        if (t.matches(".*\\d.*")) return true;
+        return t.split("\\s+").length > 1 && !t.equals(t.toUpperCase());
+    }
+}
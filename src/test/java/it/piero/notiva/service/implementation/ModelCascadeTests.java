@@ -0,0 +1,126 @@
+package it.piero.notiva.service.implementation;
+
+import it.piero.notiva.model.ExtractionItem;
+import it.piero.notiva.model.ExtractionResult;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ModelCascadeTests {
+
+    private static ExtractionItem item(String name, String value, String status, Double confidence) {
+        return ExtractionItem.builder()
+                .name(name)
+                .value(value)
+                .status(status)
+                .confidence(confidence)
+                .alternatives(List.of())
+                .build();
+    }
+
+    private static ExtractionItem notFound(String name) {
+        return item(name, "NOT_FOUND", "NOT_FOUND", 0.0);
+    }
+
+    private static ExtractionResult answer(ExtractionItem... items) {
+        return ExtractionResult.builder().extractions(List.of(items)).build();
+    }
+
+    @Test
+    void escalatesBelowTheTierThreshold() {
+        ModelCascade cascade = new ModelCascade(List.of("mini", "medium"), List.of(0.9, 0.6), true, true);
+
+        assertTrue(cascade.needsEscalation(0, item("Importo", "€ 100,00", "OK", 0.8)));
+        assertFalse(cascade.needsEscalation(1, item("Importo", "€ 100,00", "OK", 0.8)));
+        assertFalse(cascade.needsEscalation(0, item("Importo", "€ 100,00", "OK", 0.95)));
+        // senza logprobs la confidence non c'è: non ci si fida
+        assertTrue(cascade.needsEscalation(1, item("Importo", "€ 100,00", "OK", null)));
+        assertTrue(cascade.needsEscalation(1, null));
+    }
+
+    @Test
+    void ambiguousAndNotFoundFollowTheirFlags() {
+        ModelCascade escalating = new ModelCascade(List.of("mini"), List.of(0.5), true, true);
+        ModelCascade keeping = new ModelCascade(List.of("mini"), List.of(0.5), false, false);
+
+        ExtractionItem ambiguous = item("CIG", "Z1234567", "AMBIGUO", 0.99);
+        assertTrue(escalating.needsEscalation(0, ambiguous));
+        assertFalse(keeping.needsEscalation(0, ambiguous));
+
+        assertTrue(escalating.needsEscalation(0, notFound("CIG")));
+        assertFalse(keeping.needsEscalation(0, notFound("CIG")));
+        assertFalse(keeping.needsEscalation(0, item("CIG", null, "OK", 0.99)));
+    }
+
+    @Test
+    void oneThresholdAppliesToEveryTier() {
+        ModelCascade cascade = new ModelCascade(List.of("mini", " ", "medium"), List.of(0.7), true, true);
+
+        assertEquals(List.of(new ModelCascade.Tier("mini", 0.7), new ModelCascade.Tier("medium", 0.7)), cascade.tiers());
+    }
+
+    @Test
+    void asksOnlyUncertainFieldsAndMergesEveryTier() {
+        ModelCascade cascade = new ModelCascade(List.of("mini", "medium"), List.of(0.9, 0.7), true, true);
+        Map<String, ExtractionResult> answers = Map.of(
+                "mini", answer(item("Importo", "€ 1.000,00", "OK", 0.95),
+                        item("Scadenza", "01/03/2025", "OK", 0.5),
+                        notFound("CIG")),
+                "medium", answer(item("Scadenza", "15/03/2025", "AMBIGUO", 0.9),
+                        item("CIG", "Z1234567", "OK", 0.8)),
+                "main", answer(notFound("Scadenza")));
+        List<String> asked = new ArrayList<>();
+
+        ExtractionResult result = cascade.run(List.of("Importo", "Scadenza", "CIG"), (fields, model) -> {
+            String tier = model == null ? "main" : model;
+            asked.add(tier + " " + fields);
+            return answers.get(tier);
+        });
+
+        assertEquals(List.of("mini [Importo, Scadenza, CIG]", "medium [Scadenza, CIG]", "main [Scadenza]"), asked);
+
+        List<ExtractionItem> out = result.getExtractions();
+        assertEquals("€ 1.000,00", out.get(0).getValue());
+        // l'ultimo livello non trova nulla: resta la risposta migliore dei livelli prima, le altre come alternative
+        assertEquals("01/03/2025", out.get(1).getValue());
+        assertEquals("OK", out.get(1).getStatus());
+        assertEquals(List.of("15/03/2025"), out.get(1).getAlternatives());
+        assertEquals("Z1234567", out.get(2).getValue());
+
+        assertEquals(List.of(
+                new ModelCascade.TierStats("mini", 0.9, 3, 2),
+                new ModelCascade.TierStats("medium", 0.7, 2, 1)), cascade.stats());
+    }
+
+    @Test
+    void laterTierWinsWhenMoreConfident() {
+        ModelCascade cascade = new ModelCascade(List.of("mini"), List.of(0.8), true, true);
+
+        ExtractionResult result = cascade.run(List.of("Importo"), (fields, model) -> model == null
+                ? answer(item("Importo", "€ 1.200,00", "OK", 0.97))
+                : answer(item("Importo", "€ 1.000,00", "OK", 0.6)));
+
+        ExtractionItem importo = result.getExtractions().get(0);
+        assertEquals("€ 1.200,00", importo.getValue());
+        assertEquals(0.97, importo.getConfidence());
+        assertEquals(List.of("€ 1.000,00"), importo.getAlternatives());
+    }
+
+    @Test
+    void countsFieldsPerTierAcrossRequests() {
+        ModelCascade cascade = new ModelCascade(List.of("mini"), List.of(0.8), true, true);
+        for (int i = 0; i < 2; i++) {
+            cascade.run(List.of("Importo", "CIG"), (fields, model) -> model == null
+                    ? answer(item("CIG", "Z1234567", "OK", 0.9))
+                    : answer(item("Importo", "€ 1.000,00", "OK", 0.9), notFound("CIG")));
+        }
+
+        assertEquals(List.of(new ModelCascade.TierStats("mini", 0.8, 4, 2)), cascade.stats());
+    }
+}
@@ -0,0 +1,88 @@
+package it.piero.notiva.service.implementation;
+
+import it.piero.notiva.model.DocUnit;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RecordRelevanceFilterTests {
+
+    private static DocUnit text(int page, String text) {
+        return DocUnit.textUnit("LINE", page, null, text, text, 0.9f, null, "doc.pdf");
+    }
+
+    // record di riempimento, uno per pagina, senza termini dei campi
+    private static List<DocUnit> filler(int n) {
+        List<DocUnit> out = new ArrayList<>();
+        for (int i = 0; i < n; i++) out.add(text(100 + i, "Lorem ipsum dolor sit amet paragrafo " + i));
+        return out;
+    }
+
+    @Test
+    void keepsTopKAndNearTiesWithinTheMargin() {
+        List<DocUnit> records = filler(10);
+        records.add(text(1, "Importo lavori € 1.000"));
+        records.add(text(2, "Importo oneri € 200"));
+        records.add(text(3, "Importo forniture € 300"));
+        records.add(text(4, "Nel capitolato si precisa che il calcolo finale dell'importo dipende da numerose "
+                + "voci accessorie elencate negli allegati tecnici e amministrativi della procedura di gara"));
+
+        List<DocUnit> strict = new RecordRelevanceFilter(2, 0.0, 0).filter(records, List.of("Importo"));
+        // a parità di termini vincono i record più corti
+        assertEquals(List.of(records.get(11), records.get(12)), strict);
+
+        List<DocUnit> withMargin = new RecordRelevanceFilter(2, 0.2, 0).filter(records, List.of("Importo"));
+        // il terzo è appena sotto il K-esimo e resta; il paragrafo lungo è fuori margine
+        assertEquals(List.of(records.get(10), records.get(11), records.get(12)), withMargin);
+        assertFalse(withMargin.contains(records.get(13)));
+    }
+
+    @Test
+    void addsNeighboursOnTheSamePageOnly() {
+        List<DocUnit> records = filler(10);
+        records.add(text(5, "Tabella riepilogativa"));
+        records.add(text(5, "Scadenza offerte: 15/03/2025"));
+        records.add(text(5, "ore 12:00"));
+        records.add(text(6, "Allegato B"));
+
+        List<DocUnit> kept = new RecordRelevanceFilter(1, 0.0, 1).filter(records, List.of("Scadenza"));
+        assertEquals(List.of(records.get(10), records.get(11), records.get(12)), kept);
+
+        records.add(12, text(6, "Intestazione pagina 6"));
+        List<DocUnit> acrossPages = new RecordRelevanceFilter(1, 0.0, 1).filter(records, List.of("Scadenza"));
+        // il vicino su un'altra pagina non è contesto
+        assertEquals(List.of(records.get(10), records.get(11)), acrossPages);
+    }
+
+    @Test
+    void sendsEverythingWhenAFieldHasNoHits() {
+        List<DocUnit> records = filler(10);
+        records.add(text(1, "Importo lavori € 1.000"));
+
+        assertSame(records, new RecordRelevanceFilter(2, 0.2, 1).filter(records, List.of("Importo", "Ragione sociale")));
+        assertEquals(1, new RecordRelevanceFilter(2, 0.2, 0).filter(records, List.of("Importo")).size());
+    }
+
+    @Test
+    void foldsAccentsCaseStemsAndSynonyms() {
+        assertEquals(List.of("citta", "ente", "importo", "totale"), RecordRelevanceFilter.tokenize("CITTÀ, Ente — IMPORTO_totale"));
+        assertEquals("scadenz", RecordRelevanceFilter.stem("scadenze"));
+        assertEquals(RecordRelevanceFilter.stem("importo"), RecordRelevanceFilter.stem("importi"));
+        assertTrue(RecordRelevanceFilter.queryTerms("Data di scadenza").contains("termin"));
+        assertFalse(RecordRelevanceFilter.queryTerms("Data di scadenza").contains("di"));
+
+        List<DocUnit> records = filler(10);
+        records.add(text(1, "IMPORTI A BASE D'ASTA"));
+        records.add(text(2, "Corrispettivo: € 50.000"));
+        records.add(text(3, "Città di Milano"));
+
+        List<DocUnit> kept = new RecordRelevanceFilter(2, 0.0, 0).filter(records, List.of("importo", "citta"));
+        assertEquals(List.of(records.get(10), records.get(11), records.get(12)), kept);
+    }
+}
@@ -0,0 +1,69 @@
+package it.piero.notiva.service.implementation;
+
+import it.piero.notiva.model.DocUnit;
+import it.piero.notiva.model.ExtractionItem;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class RuleBasedExtractorTests {
+
+    private final RuleBasedExtractor extractor = new RuleBasedExtractor(0.9);
+
+    @Test
+    void resolvesLabelValueLinesWithPromptFormatting() {
+        String text = """
+                OGGETTO: Manutenzione ordinaria strade comunali
+                Importo a base d'asta: 1234567,8 euro
+                Scadenza offerte: entro le ore 12:00 del 15/03/2025
+                Aliquota IVA: 22%
+                """;
+        Map<String, ExtractionItem> out = extractor.extract(text,
+                List.of("oggetto", "Importo a base d’asta", "scadenza_offerte", "aliquota iva", "CIG"));
+
+        assertEquals("Manutenzione ordinaria strade comunali", out.get("oggetto").getValue());
+        assertEquals("€ 1.234.567,80", out.get("Importo a base d’asta").getValue());
+        assertEquals("15/03/2025", out.get("scadenza_offerte").getValue());
+        // percentuale su un campo monetario e campo assente: al modello
+        assertFalse(out.containsKey("aliquota iva"));
+        assertFalse(out.containsKey("CIG"));
+        assertEquals("OK", out.get("oggetto").getStatus());
+    }
+
+    @Test
+    void readsKeyValueTablesAndLeavesConflictsToTheModel() {
+        DocUnit table = DocUnit.tableUnit(2, null, List.of(
+                List.of("Voce", "Valore"),
+                List.of("Canone annuo", "€ 12.000,00"),
+                Arrays.asList("Responsabile", "Mario Rossi"),
+                Arrays.asList(null, "Ufficio tecnico"),
+                List.of("Durata", "36 mesi")), "t", 0.9f, null, "doc.pdf");
+        DocUnit line = DocUnit.textUnit("LINE", 3, null, "Durata: 24 mesi", "l", 0.9f, null, "doc.pdf");
+
+        Map<String, ExtractionItem> out = extractor.extract(List.of(table, line),
+                List.of("Canone annuo", "Responsabile", "Durata", "Descrizione canone annuo"));
+
+        assertEquals("€ 12.000,00", out.get("Canone annuo").getValue());
+        assertEquals(2, out.get("Canone annuo").getEvidence().getPage());
+        assertEquals("Mario Rossi | Ufficio tecnico", out.get("Responsabile").getValue());
+        assertFalse(out.containsKey("Durata"));
+        assertFalse(out.containsKey("Descrizione canone annuo"));
+    }
+
+    @Test
+    void moneyFormatting() {
+        assertEquals("€ 1.234,56", RuleBasedExtractor.formatMoney("EUR 1.234,56"));
+        assertEquals("€ 1.234,56", RuleBasedExtractor.formatMoney("1234.56"));
+        assertEquals("€ 50.000,00", RuleBasedExtractor.formatMoney("€ 50.000 (IVA esclusa)"));
+        assertNull(RuleBasedExtractor.formatMoney("$ 1,000.00"));
+        assertNull(RuleBasedExtractor.formatMoney("€"));
+        assertNull(RuleBasedExtractor.formatMoney("€ 100 + € 20"));
+        assertEquals("2024-06-25", RuleBasedExtractor.findDate("dal 2024-06-25"));
+    }
+}
@@ -0,0 +1,136 @@
+package it.piero.notiva.service.implementation;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.textract.model.BoundingBox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TableAreaIndexTests {
+
+    private static final Logger log = LoggerFactory.getLogger(TableAreaIndexTests.class);
+
+    private static final double MIN_COVERAGE = 0.20;
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 15;
+
+    @Test
+    void matchesExhaustiveScan() {
+        Random rnd = new Random(42);
+        for (int round = 0; round < 50; round++) {
+            List<BoundingBox> cells = randomBoxes(rnd, 1 + rnd.nextInt(400), 0.15f);
+            TableAreaIndex index = TableAreaIndex.of(Map.of(1, cells));
+
+            for (BoundingBox line : randomBoxes(rnd, 500, 0.4f)) {
+                assertEquals(exhaustive(line, cells), index.covers(line, 1, MIN_COVERAGE), () -> "linea " + line);
+            }
+        }
+    }
+
+    @Test
+    void otherPagesAreNotCovered() {
+        BoundingBox box = box(0.1f, 0.1f, 0.5f, 0.5f);
+        TableAreaIndex index = TableAreaIndex.of(Map.of(1, List.of(box)));
+
+        assertEquals(true, index.covers(box, 1, MIN_COVERAGE));
+        assertEquals(false, index.covers(box, 2, MIN_COVERAGE));
+    }
+
+    // pagina densa: una tabella da 600 celle e 2000 linee; solo su richiesta (-Dnotiva.benchmark=true)
+    @Test
+    @Tag("benchmark")
+    @EnabledIfSystemProperty(named = "notiva.benchmark", matches = "true")
+    void benchmarkDenseTablePage() {
+        Random rnd = new Random(7);
+        List<BoundingBox> cells = new ArrayList<>();
+        for (int r = 0; r < 60; r++) {
+            for (int c = 0; c < 10; c++) {
+                cells.add(box(0.05f + c * 0.09f, 0.05f + r * 0.015f, 0.09f, 0.015f));
+            }
+        }
+        List<BoundingBox> lines = randomBoxes(rnd, 2000, 0.3f);
+        TableAreaIndex index = TableAreaIndex.of(Map.of(1, cells));
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            assertEquals(countExhaustive(lines, cells), countIndexed(lines, index));
+        }
+
+        long[] scan = new long[MEASURED_ROUNDS];
+        long[] grid = new long[MEASURED_ROUNDS];
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            long t0 = System.nanoTime();
+            int expected = countExhaustive(lines, cells);
+            long t1 = System.nanoTime();
+            int actual = countIndexed(lines, index);
+            long t2 = System.nanoTime();
+            assertEquals(expected, actual);
+            scan[i] = t1 - t0;
+            grid[i] = t2 - t1;
+        }
+        log.info("Copertura tabelle su {} celle x {} linee (mediana di {} giri): scansione {} ms, griglia {} ms",
+                cells.size(), lines.size(), MEASURED_ROUNDS, millis(median(scan)), millis(median(grid)));
+    }
+
+    private static int countExhaustive(List<BoundingBox> lines, List<BoundingBox> cells) {
+        int n = 0;
+        for (BoundingBox l : lines) if (exhaustive(l, cells)) n++;
+        return n;
+    }
+
+    private static int countIndexed(List<BoundingBox> lines, TableAreaIndex index) {
+        int n = 0;
+        for (BoundingBox l : lines) if (index.covers(l, 1, MIN_COVERAGE)) n++;
+        return n;
+    }
+
+    private static long median(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.2f", nanos / 1e6);
+    }
+
+    // implementazione precedente, riportata come riferimento
+    private static boolean exhaustive(BoundingBox lb, List<BoundingBox> boxes) {
+        double la = Math.max(0, lb.width()) * Math.max(0, lb.height());
+        if (la <= 0) return false;
+        for (BoundingBox cb : boxes) {
+            double ax1 = lb.left(), ay1 = lb.top();
+            double ax2 = lb.left() + lb.width(), ay2 = lb.top() + lb.height();
+            double bx1 = cb.left(), by1 = cb.top();
+            double bx2 = cb.left() + cb.width(), by2 = cb.top() + cb.height();
+            double ix = Math.max(0, Math.min(ax2, bx2) - Math.max(ax1, bx1));
+            double iy = Math.max(0, Math.min(ay2, by2) - Math.max(ay1, by1));
+            if (ix * iy / la >= MIN_COVERAGE) return true;
+        }
+        return false;
+    }
+
+    private static List<BoundingBox> randomBoxes(Random rnd, int n, float maxSide) {
+        List<BoundingBox> out = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            // qualche box fuori pagina o degenere, come capita nelle risposte reali
+            out.add(box(rnd.nextFloat() * 1.1f - 0.05f, rnd.nextFloat() * 1.1f - 0.05f,
+                    rnd.nextInt(50) == 0 ? 0f : rnd.nextFloat() * maxSide,
+                    rnd.nextFloat() * maxSide / 4));
+        }
+        return out;
+    }
+
+    private static BoundingBox box(float left, float top, float width, float height) {
+        return BoundingBox.builder().left(left).top(top).width(width).height(height).build();
+    }
+}
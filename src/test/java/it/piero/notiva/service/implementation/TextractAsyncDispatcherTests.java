@@ -0,0 +1,123 @@
+package it.piero.notiva.service.implementation;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+import software.amazon.awssdk.services.textract.model.ThrottlingException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TextractAsyncDispatcherTests {
+
+    // il client non serve: dispatch riceve direttamente la chiamata asincrona
+    private static TextractAsyncDispatcher dispatcher(int maxRetries) {
+        return new TextractAsyncDispatcher(null, 4, 1, 16, maxRetries);
+    }
+
+    // fallisce con gli errori indicati, nell'ordine, poi risponde "ok"
+    private static Supplier<CompletableFuture<String>> failing(AtomicInteger calls, RuntimeException... errors) {
+        return () -> {
+            int n = calls.getAndIncrement();
+            return n < errors.length ? CompletableFuture.failedFuture(errors[n]) : CompletableFuture.completedFuture("ok");
+        };
+    }
+
+    private static SdkServiceException status(int code) {
+        return SdkServiceException.builder().statusCode(code).message("HTTP " + code).build();
+    }
+
+    @Test
+    void retriesThrottlingAndLowersTheLimit() {
+        TextractAsyncDispatcher dispatcher = dispatcher(3);
+        AtomicInteger calls = new AtomicInteger();
+
+        String result = dispatcher.dispatch(failing(calls,
+                ThrottlingException.builder().message("Rate exceeded").build(),
+                ThrottlingException.builder().message("Rate exceeded").build())).join();
+
+        assertEquals("ok", result);
+        assertEquals(3, calls.get());
+        // due segnali nello stesso cooldown: un solo dimezzamento
+        assertEquals(2, dispatcher.limit());
+    }
+
+    @Test
+    void retriesTransientErrorsWithoutLoweringTheLimit() {
+        TextractAsyncDispatcher dispatcher = dispatcher(3);
+        AtomicInteger calls = new AtomicInteger();
+
+        String result = dispatcher.dispatch(failing(calls,
+                status(503), SdkClientException.create("Connection reset"))).join();
+
+        assertEquals("ok", result);
+        assertEquals(3, calls.get());
+        assertEquals(4, dispatcher.limit());
+    }
+
+    @Test
+    void failsFastOnClientErrors() {
+        TextractAsyncDispatcher dispatcher = dispatcher(3);
+        AtomicInteger calls = new AtomicInteger();
+        SdkServiceException badRequest = status(400);
+
+        CompletionException e = assertThrows(CompletionException.class,
+                () -> dispatcher.dispatch(failing(calls, badRequest)).join());
+
+        assertSame(badRequest, e.getCause());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void givesUpAfterMaxRetries() {
+        TextractAsyncDispatcher dispatcher = dispatcher(2);
+        AtomicInteger calls = new AtomicInteger();
+        SdkServiceException unavailable = status(500);
+
+        CompletionException e = assertThrows(CompletionException.class,
+                () -> dispatcher.dispatch(failing(calls, unavailable, unavailable, unavailable, unavailable)).join());
+
+        assertSame(unavailable, e.getCause());
+        assertEquals(3, calls.get());
+    }
+
+    // risposte fuori ordine e ritentativi sparsi: ogni future riceve la propria risposta e il limite non si sfora
+    @Test
+    void completesEachCallWithItsOwnResponseWithinTheLimit() {
+        TextractAsyncDispatcher dispatcher = dispatcher(3);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 24; i++) {
+            int page = i;
+            AtomicInteger calls = new AtomicInteger();
+            results.add(dispatcher.dispatch(() -> {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                boolean fail = page % 5 == 0 && calls.getAndIncrement() == 0;
+                long delay = (24 - page) % 7 * 5L;
+                return CompletableFuture.supplyAsync(() -> {
+                    inFlight.decrementAndGet();
+                    if (fail) throw status(502);
+                    return page;
+                }, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS));
+            }));
+        }
+
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(i, results.get(i).join());
+        }
+        // senza throttling il limite cresce soltanto: quello finale è il massimo raggiunto
+        assertTrue(maxInFlight.get() <= dispatcher.limit(), "in volo: " + maxInFlight.get());
+    }
+}
@@ -0,0 +1,100 @@
+package it.piero.notiva.service.implementation;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import software.amazon.awssdk.services.textract.model.Block;
+import software.amazon.awssdk.services.textract.model.BlockType;
+import software.amazon.awssdk.services.textract.model.BoundingBox;
+import software.amazon.awssdk.services.textract.model.Geometry;
+import software.amazon.awssdk.services.textract.model.Relationship;
+import software.amazon.awssdk.services.textract.model.RelationshipType;
+import software.amazon.awssdk.services.textract.model.SelectionStatus;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class TextractResponseCacheTests {
+
+    @TempDir
+    Path dir;
+
+    private static List<Block> blocks() {
+        Block line = Block.builder()
+                .id("l1")
+                .blockType(BlockType.LINE)
+                .text("Saldo al 31/12: 126.000,00")
+                .page(1)
+                .confidence(98.5f)
+                .geometry(Geometry.builder()
+                        .boundingBox(BoundingBox.builder().left(0.1f).top(0.2f).width(0.5f).height(0.02f).build())
+                        .build())
+                .relationships(List.of(Relationship.builder().type(RelationshipType.CHILD).ids("w1", "w2").build()))
+                .build();
+        Block cell = Block.builder()
+                .id("c1")
+                .blockType(BlockType.CELL)
+                .rowIndex(2)
+                .columnIndex(3)
+                .page(1)
+                .build();
+        Block check = Block.builder()
+                .id("s1")
+                .blockType(BlockType.SELECTION_ELEMENT)
+                .selectionStatus(SelectionStatus.SELECTED)
+                .build();
+        return List.of(line, cell, check);
+    }
+
+    @Test
+    void keysDependOnPageAndFeatures() {
+        TextractResponseCache cache = new TextractResponseCache(4, null, 0);
+        byte[] page = "pagina".getBytes(StandardCharsets.UTF_8);
+
+        assertEquals(cache.key(page, "TABLES"), cache.key(page.clone(), "TABLES"));
+        assertNotEquals(cache.key(page, "TABLES"), cache.key(page, "TABLES,FORMS"));
+        assertNotEquals(cache.key(page, "TABLES"), cache.key("pagina 2".getBytes(StandardCharsets.UTF_8), "TABLES"));
+    }
+
+    @Test
+    void reloadsBlocksFromDiskAfterRestart() {
+        TextractResponseCache before = new TextractResponseCache(4, dir.toString(), 1_000_000);
+        String key = before.key("pagina".getBytes(StandardCharsets.UTF_8), "TABLES");
+        before.put(key, blocks());
+
+        TextractResponseCache after = new TextractResponseCache(4, dir.toString(), 1_000_000);
+        List<Block> cached = after.get(key);
+
+        assertNotNull(cached);
+        assertEquals(1, after.stats().diskHits());
+        assertEquals(3, cached.size());
+
+        Block line = cached.get(0);
+        assertEquals("l1", line.id());
+        assertEquals(BlockType.LINE, line.blockType());
+        assertEquals("Saldo al 31/12: 126.000,00", line.text());
+        assertEquals(1, line.page());
+        assertEquals(98.5f, line.confidence(), 0.0);
+        BoundingBox bb = line.geometry().boundingBox();
+        assertEquals(0.1f, bb.left(), 0.0);
+        assertEquals(0.2f, bb.top(), 0.0);
+        assertEquals(0.5f, bb.width(), 0.0);
+        assertEquals(0.02f, bb.height(), 0.0);
+        assertEquals(RelationshipType.CHILD, line.relationships().get(0).type());
+        assertEquals(List.of("w1", "w2"), line.relationships().get(0).ids());
+
+        Block cell = cached.get(1);
+        assertEquals(BlockType.CELL, cell.blockType());
+        assertEquals(2, cell.rowIndex());
+        assertEquals(3, cell.columnIndex());
+        assertNull(cell.text());
+        assertNull(cell.geometry());
+
+        assertEquals(SelectionStatus.SELECTED, cached.get(2).selectionStatus());
+    }
+}
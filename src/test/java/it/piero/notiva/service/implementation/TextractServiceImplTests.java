@@ -0,0 +1,123 @@
+package it.piero.notiva.service.implementation;
+
+import it.piero.notiva.utils.PageTriageUtils;
+import it.piero.notiva.utils.PdfTextLayerUtils;
+import it.piero.notiva.utils.PdfUtils;
+import it.piero.notiva.utils.RenderPolicy;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.font.Standard14Fonts;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.mock.web.MockMultipartFile;
+import software.amazon.awssdk.services.textract.TextractClient;
+import software.amazon.awssdk.services.textract.model.AnalyzeDocumentRequest;
+import software.amazon.awssdk.services.textract.model.AnalyzeDocumentResponse;
+import software.amazon.awssdk.services.textract.model.Block;
+import software.amazon.awssdk.services.textract.model.BlockType;
+import software.amazon.awssdk.services.textract.model.BoundingBox;
+import software.amazon.awssdk.services.textract.model.DetectDocumentTextRequest;
+import software.amazon.awssdk.services.textract.model.DetectDocumentTextResponse;
+import software.amazon.awssdk.services.textract.model.Geometry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TextractServiceImplTests {
+
+    // risponde a DetectDocumentText con una sola LINE e conta le chiamate
+    private static final class CountingTextract implements TextractClient {
+
+        final AtomicInteger detectCalls = new AtomicInteger();
+
+        @Override
+        public DetectDocumentTextResponse detectDocumentText(DetectDocumentTextRequest request) {
+            Block line = Block.builder()
+                    .blockType(BlockType.LINE)
+                    .text("Pagina scansionata " + detectCalls.incrementAndGet())
+                    .geometry(Geometry.builder()
+                            .boundingBox(BoundingBox.builder().left(0.1f).top(0.1f).width(0.5f).height(0.02f).build())
+                            .build())
+                    .build();
+            return DetectDocumentTextResponse.builder().blocks(line).build();
+        }
+
+        @Override
+        public AnalyzeDocumentResponse analyzeDocument(AnalyzeDocumentRequest request) {
+            throw new UnsupportedOperationException();
+        }
+
+        public String serviceName() {
+            return "textract";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static TextractServiceImpl service(TextractClient textract) {
+        DefaultListableBeanFactory beans = new DefaultListableBeanFactory();
+        return new TextractServiceImpl(textract,
+                beans.getBeanProvider(TextractAsyncDispatcher.class),
+                beans.getBeanProvider(TextractResponseCache.class),
+                new PdfUtils(new RenderPolicy(RenderPolicy.ColorMode.AUTO, 150, 9_000_000, 5_000_000), 1, 20_971_520, 16_777_216),
+                new PdfTextLayerUtils(true, 32, 200, 0.10),
+                new PageTriageUtils(true, 0.00002, 0.15, 0.05),
+                new OcrTierPolicy(false, 3, 3, 0.4),
+                4);
+    }
+
+    private static void textPage(PDDocument doc, String text) throws IOException {
+        PDPage page = new PDPage(PDRectangle.A4);
+        doc.addPage(page);
+        try (PDPageContentStream cs = new PDPageContentStream(doc, page)) {
+            cs.beginText();
+            cs.setFont(new PDType1Font(Standard14Fonts.FontName.HELVETICA), 12);
+            cs.newLineAtOffset(72, 700);
+            cs.showText(text);
+            cs.endText();
+        }
+    }
+
+    // niente testo: solo un riquadro disegnato, come una scansione vettorializzata
+    private static void drawnPage(PDDocument doc) throws IOException {
+        PDPage page = new PDPage(PDRectangle.A4);
+        doc.addPage(page);
+        try (PDPageContentStream cs = new PDPageContentStream(doc, page)) {
+            cs.addRect(72, 600, 300, 120);
+            cs.fill();
+        }
+    }
+
+    @Test
+    void analyzeTextReadsNativePagesWithoutTextract() throws IOException {
+        ByteArrayOutputStream pdf = new ByteArrayOutputStream();
+        try (PDDocument doc = new PDDocument()) {
+            textPage(doc, "Estratto conto al 31/12/2024 - saldo finale 1.234,56");
+            drawnPage(doc);
+            textPage(doc, "Intestatario: Mario Rossi, codice cliente 00123456");
+            doc.save(pdf);
+        }
+        CountingTextract textract = new CountingTextract();
+
+        String text = service(textract).analyzeText(List.of(
+                new MockMultipartFile("files", "misto.pdf", "application/pdf", pdf.toByteArray())));
+
+        // solo la pagina senza text layer va a Textract, e resta al suo posto tra le native
+        assertEquals(1, textract.detectCalls.get());
+        assertEquals("""
+                Estratto conto al 31/12/2024 - saldo finale 1.234,56
+
+                Pagina scansionata 1
+
+                Intestatario: Mario Rossi, codice cliente 00123456""", text);
+    }
+}
@@ -0,0 +1,82 @@
+package it.piero.notiva.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AimdLimiterTests {
+
+    @Test
+    void halvesOnThrottle() {
+        AimdLimiter limiter = new AimdLimiter(8, 1, 16);
+        limiter.onThrottle();
+        assertEquals(4, limiter.limit());
+    }
+
+    @Test
+    void throttleBurstWithinCooldownCountsOnce() throws InterruptedException {
+        AimdLimiter limiter = new AimdLimiter(16, 1, 16);
+        limiter.onThrottle();
+        limiter.onThrottle();
+        limiter.onThrottle();
+        assertEquals(8, limiter.limit());
+
+        Thread.sleep(1_100);
+        limiter.onThrottle();
+        assertEquals(4, limiter.limit());
+    }
+
+    // +1/limite per successo: una finestra piena di successi alza il limite di uno
+    @Test
+    void growsByOnePerWindowOfSuccesses() {
+        AimdLimiter limiter = new AimdLimiter(4, 1, 16);
+        for (int i = 0; i < 3; i++) limiter.onSuccess();
+        assertEquals(4, limiter.limit());
+        for (int i = 0; i < 2; i++) limiter.onSuccess();
+        assertEquals(5, limiter.limit());
+    }
+
+    @Test
+    void staysWithinBounds() throws InterruptedException {
+        assertEquals(3, new AimdLimiter(0, 3, 8).limit());
+        assertEquals(8, new AimdLimiter(100, 3, 8).limit());
+
+        AimdLimiter limiter = new AimdLimiter(7, 2, 8);
+        for (int i = 0; i < 100; i++) limiter.onSuccess();
+        assertEquals(8, limiter.limit());
+
+        limiter.onThrottle();
+        Thread.sleep(1_100);
+        limiter.onThrottle();
+        assertEquals(2, limiter.limit());
+    }
+
+    @Test
+    void acquireWaitsForAFreeSlot() throws InterruptedException {
+        AimdLimiter limiter = new AimdLimiter(2, 1, 4);
+        limiter.acquire();
+        limiter.acquire();
+        assertEquals(2, limiter.inFlight());
+
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = Thread.ofVirtual().start(() -> {
+            try {
+                limiter.acquire();
+                acquired.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+
+        limiter.release();
+        assertTrue(acquired.await(2, TimeUnit.SECONDS));
+        waiter.join();
+        assertEquals(2, limiter.inFlight());
+    }
+}
@@ -0,0 +1,71 @@
+package it.piero.notiva.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.piero.notiva.model.BBox;
+import it.piero.notiva.model.DocUnit;
+import it.piero.notiva.model.DocUnitRequest;
+import it.piero.notiva.model.Region;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.tokenizer.JTokkitTokenCountEstimator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompactRecordEncoderTests {
+
+    @Test
+    void groupsByFileAndPageAndEscapes() {
+        List<DocUnit> records = List.of(
+                DocUnit.textUnit("LINE", 1, new BBox(0.1234f, 0.05f, 0.5f, 0.02f), "Oggetto: lavori\ndi manutenzione",
+                        "id-1", 0.99f, Region.HEADER, "bando.pdf"),
+                DocUnit.tableUnit(1, new BBox(0.1f, 0.3f, 0.8f, 0.2f),
+                        List.of(List.of("Voce", "Importo"), Arrays.asList(null, "€ 1.000,00 | IVA esclusa")),
+                        "id-2", 0.9f, Region.BODY, "bando.pdf"),
+                DocUnit.textUnit(null, 2, null, "C:\\percorso", "id-3", 0.9f, null, "bando.pdf"));
+
+        String out = CompactRecordEncoder.encode(records, List.of("Importo"), null);
+
+        assertEquals("""
+                FIELDS
+                - Importo
+                RECORDS
+                @ bando.pdf
+                # 1
+                T 0.12,0.05,0.5,0.02 LINE HEADER: Oggetto: lavori\\ndi manutenzione
+                TAB 0.1,0.3,0.8,0.2:
+                | Voce | Importo |
+                |  | € 1.000,00 \\| IVA esclusa |
+                # 2
+                T: C:\\\\percorso
+                """, out);
+    }
+
+    @Test
+    void usesFarFewerTokensThanJson() throws Exception {
+        List<DocUnit> records = new ArrayList<>();
+        for (int page = 1; page <= 10; page++) {
+            for (int i = 0; i < 30; i++) {
+                records.add(DocUnit.textUnit("LINE", page, new BBox(0.1f + i * 0.001f, i / 31f, 0.6f, 0.0123f),
+                        "Riga " + i + " del capitolato: importo a base d'asta e criteri di aggiudicazione",
+                        UUID.randomUUID().toString(), 0.98765f, Region.BODY, "capitolato_speciale_appalto.pdf"));
+            }
+            records.add(DocUnit.tableUnit(page, new BBox(0.1f, 0.7f, 0.8f, 0.2f),
+                    List.of(List.of("Voce", "Importo"), List.of("Lavori", "€ 1.000,00"), List.of("Oneri", "€ 50,00")),
+                    UUID.randomUUID().toString(), 0.95f, Region.BODY, "capitolato_speciale_appalto.pdf"));
+        }
+        List<String> fields = List.of("Importo totale", "Scadenza");
+
+        JTokkitTokenCountEstimator estimator = new JTokkitTokenCountEstimator();
+        String json = new ObjectMapper().writeValueAsString(DocUnitRequest.builder().records(records).fields(fields).notes("").build());
+        int jsonTokens = estimator.estimate(json);
+        int compactTokens = estimator.estimate(CompactRecordEncoder.encode(records, fields, ""));
+
+        // meno della metà dei token del JSON (~-62% su questo campione)
+        assertTrue(compactTokens * 2 < jsonTokens, () -> "compatti " + compactTokens + ", JSON " + jsonTokens);
+    }
+}
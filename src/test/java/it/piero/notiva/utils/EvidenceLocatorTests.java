@@ -0,0 +1,53 @@
+package it.piero.notiva.utils;
+
+import it.piero.notiva.model.DocUnit;
+import it.piero.notiva.model.Evidence;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class EvidenceLocatorTests {
+
+    private final List<DocUnit> records = List.of(
+            DocUnit.tableUnit(2, null, List.of(
+                    List.of("Canone annuo", "12.000,00 euro"),
+                    List.of("CIG", "ZAB1234567")), "t", 0.9f, null, "doc.pdf"),
+            DocUnit.textUnit("LINE", 3, null, "Importo totale: € 50.000\nA misura 5600,00", "l", 0.9f, null, "doc.pdf"));
+
+    @Test
+    void findsValuesAsTheDocumentWritesThem() {
+        Evidence canone = EvidenceLocator.locate(records, "€ 12.000,00");
+        assertEquals(2, canone.getPage());
+        assertEquals("Canone annuo | 12.000,00 euro", canone.getSnippet());
+
+        assertEquals("Importo totale: € 50.000", EvidenceLocator.locate(records, "€ 50.000,00").getSnippet());
+        assertEquals("A misura 5600,00", EvidenceLocator.locate(records, "A misura: € 5.600,00").getSnippet());
+        assertEquals("CIG | ZAB1234567", EvidenceLocator.locate(records, "zab1234567").getSnippet());
+    }
+
+    @Test
+    void ignoresValuesInsideLongerNumbersAndCodes() {
+        List<DocUnit> lines = List.of(DocUnit.textUnit("LINE", 1, null, String.join("\n",
+                "Totale: € 1.100,00",
+                "Prot. n. 1001 del 2100",
+                "Codice XAB123",
+                "Acconto: € 100,00",
+                "CIG AB12"), "l", 0.9f, null, "doc.pdf"));
+
+        assertEquals("Acconto: € 100,00", EvidenceLocator.locate(lines, "€ 100,00").getSnippet());
+        assertEquals("CIG AB12", EvidenceLocator.locate(lines, "AB12").getSnippet());
+        assertNull(EvidenceLocator.locate(lines, "€ 10,00"));
+    }
+
+    @Test
+    void nothingForMissingValues() {
+        assertNull(EvidenceLocator.locate(records, "NOT_FOUND"));
+        assertNull(EvidenceLocator.locate(records, "€ 99,00"));
+        assertNull(EvidenceLocator.locate("Oggetto: Manutenzione strade", null));
+        assertEquals("Oggetto: Manutenzione strade",
+                EvidenceLocator.locate("Oggetto: Manutenzione strade", "Manutenzione Strade").getSnippet());
+    }
+}
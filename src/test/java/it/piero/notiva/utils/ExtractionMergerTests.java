@@ -0,0 +1,95 @@
+package it.piero.notiva.utils;
+
+import it.piero.notiva.model.Evidence;
+import it.piero.notiva.model.ExtractionItem;
+import it.piero.notiva.model.ExtractionResult;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ExtractionMergerTests {
+
+    private static ExtractionItem item(String name, String value, String status, double confidence, String... alternatives) {
+        return ExtractionItem.builder()
+                .name(name)
+                .value(value)
+                .evidence(Evidence.builder().snippet(value).build())
+                .status(status)
+                .confidence(confidence)
+                .alternatives(List.of(alternatives))
+                .build();
+    }
+
+    private static ExtractionResult chunk(ExtractionItem... items) {
+        return ExtractionResult.builder().extractions(List.of(items)).build();
+    }
+
+    @Test
+    void ranksByStatusThenConfidenceAndTiesGoToTheEarlierChunk() {
+        List<String> fields = List.of("Importo", "Scadenza", "CIG");
+        ExtractionResult merged = ExtractionMerger.merge(fields, List.of(
+                chunk(item("Importo", "€ 900,00", "AMBIGUO", 0.95),
+                        item("Scadenza", "01/03/2025", "OK", 0.80),
+                        item("CIG", "NOT_FOUND", "NOT_FOUND", 0.0)),
+                chunk(item("Importo", "€ 1.000,00", "OK", 0.60),
+                        item("Scadenza", "15/03/2025", "OK", 0.80),
+                        item("CIG", "Z1234567", "AMBIGUO", 0.40))));
+
+        List<ExtractionItem> out = merged.getExtractions();
+        // OK batte AMBIGUO anche con confidence più bassa
+        assertEquals("€ 1.000,00", out.get(0).getValue());
+        assertEquals(List.of("€ 900,00"), out.get(0).getAlternatives());
+        assertEquals("€ 1.000,00", out.get(0).getEvidence().getSnippet());
+        // stesso stato e stessa confidence: vince il primo blocco
+        assertEquals("01/03/2025", out.get(1).getValue());
+        assertEquals(List.of("15/03/2025"), out.get(1).getAlternatives());
+        // qualsiasi valore batte NOT_FOUND
+        assertEquals("Z1234567", out.get(2).getValue());
+        assertEquals("AMBIGUO", out.get(2).getStatus());
+    }
+
+    @Test
+    void capsAndDeduplicatesAlternatives() {
+        ExtractionResult merged = ExtractionMerger.merge(List.of("Importo"), List.of(
+                chunk(item("Importo", "€ 1.000,00", "OK", 0.9, "€ 1.000,00", "€ 2.000,00")),
+                chunk(item("Importo", "€ 1000,00", "AMBIGUO", 0.5, "€ 2.000,00", "€ 3.000,00")),
+                chunk(item("Importo", "€ 4.000,00", "AMBIGUO", 0.4, "€ 5.000,00"))));
+
+        ExtractionItem out = merged.getExtractions().get(0);
+        assertEquals("€ 1.000,00", out.getValue());
+        // il vincitore non torna tra le alternative, neanche scritto diversamente; massimo 3
+        assertEquals(List.of("€ 2.000,00", "€ 3.000,00", "€ 4.000,00"), out.getAlternatives());
+    }
+
+    @Test
+    void normalizesFieldNames() {
+        ExtractionResult merged = ExtractionMerger.merge(List.of("Importo totale", "importo_totale", "Data"), List.of(
+                chunk(item("IMPORTO-TOTALE", "€ 10,00", "OK", 0.9))));
+
+        List<ExtractionItem> out = merged.getExtractions();
+        assertEquals(3, out.size());
+        // nomi che collidono dopo la normalizzazione ricevono la stessa risposta, col nome richiesto
+        assertEquals("Importo totale", out.get(0).getName());
+        assertEquals("€ 10,00", out.get(0).getValue());
+        assertEquals("importo_totale", out.get(1).getName());
+        assertEquals("€ 10,00", out.get(1).getValue());
+    }
+
+    @Test
+    void omittedFieldsComeBackAsNotFound() {
+        ExtractionResult merged = ExtractionMerger.merge(List.of("Importo", "Data"), List.of(
+                chunk(item("Importo", "€ 10,00", "OK", 0.9), item("Altro", "x", "OK", 0.9)),
+                ExtractionResult.builder().build()));
+
+        List<ExtractionItem> out = merged.getExtractions();
+        assertEquals(2, out.size());
+        ExtractionItem data = out.get(1);
+        assertEquals("Data", data.getName());
+        assertEquals("NOT_FOUND", data.getValue());
+        assertEquals("NOT_FOUND", data.getStatus());
+        assertEquals(0.0, data.getConfidence());
+        assertEquals(List.of(), data.getAlternatives());
+    }
+}
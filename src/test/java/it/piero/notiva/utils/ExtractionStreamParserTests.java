@@ -0,0 +1,62 @@
+package it.piero.notiva.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ExtractionStreamParserTests {
+
+    private static final String OUTPUT = """
+            ```json
+            {"notes":"{[ non è l'array ]}","extractions":[
+              {"name":"Totale","value":"€ 1.234,56","evidence":{"snippet":"Totale: € 1.234,56 }"},"status":"OK","confidence":0.9,"alternatives":[]},
+              {"name":"Nome \\"breve\\"","value":"Mario \\"Rossi\\"","status":"AMBIGUO","alternatives":["M. Rossi","value"]},
+              {"name":"value","value":null,"status":"NOT_FOUND"}
+            ]}
+            ```""";
+
+    @Test
+    void emitsEachElementWhenItCloses() {
+        // un carattere per volta: il caso peggiore dello streaming
+        ExtractionStreamParser parser = new ExtractionStreamParser("extractions");
+        List<ExtractionStreamParser.Element> elements = new ArrayList<>();
+        for (int i = 0; i < OUTPUT.length(); i++) {
+            elements.addAll(parser.feed(OUTPUT.substring(i, i + 1)));
+        }
+
+        assertEquals(3, elements.size());
+        assertTrue(parser.isArrayClosed());
+        assertTrue(parser.text(elements.get(0).span()).startsWith("{\"name\":\"Totale\""));
+        assertTrue(parser.text(elements.get(2).span()).endsWith("\"NOT_FOUND\"}"));
+    }
+
+    @Test
+    void findsRawValueSpan() {
+        // lo span del valore arriva da feed(), a pezzi di lunghezza variabile come dallo stream
+        ExtractionStreamParser parser = new ExtractionStreamParser("extractions", "value");
+        List<ExtractionStreamParser.Element> elements = new ArrayList<>();
+        for (int i = 0, step = 1; i < OUTPUT.length(); i += step, step = step % 5 + 1) {
+            elements.addAll(parser.feed(OUTPUT.substring(i, Math.min(OUTPUT.length(), i + step))));
+        }
+
+        assertEquals(3, elements.size());
+        assertEquals("€ 1.234,56", parser.text(elements.get(0).value()));
+        // escape ancora presenti; "value" tra le alternative non è la chiave
+        assertEquals("Mario \\\"Rossi\\\"", parser.text(elements.get(1).value()));
+        // chiave presente ma valore null, e "value" usato come valore di name
+        assertNull(elements.get(2).value());
+    }
+
+    @Test
+    void incompleteOutputIsNotClosed() {
+        ExtractionStreamParser parser = new ExtractionStreamParser("extractions");
+        assertEquals(1, parser.feed(OUTPUT.substring(0, OUTPUT.indexOf("{\"name\":\"Nome"))).size());
+        assertFalse(parser.isArrayClosed());
+    }
+}
@@ -0,0 +1,74 @@
+package it.piero.notiva.utils;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.openai.api.OpenAiApi.LogProbs.Content;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LogProbsJsonAlignerTests {
+
+    // token da 1-4 caratteri, spezzati anche a metà di chiavi ed escape
+    private static List<Content> tokenize(String text) {
+        List<Content> out = new ArrayList<>();
+        int i = 0;
+        int step = 0;
+        while (i < text.length()) {
+            int len = 1 + (step++ % 4);
+            int end = Math.min(text.length(), i + len);
+            out.add(new Content(text.substring(i, end), -0.01f, null, List.of()));
+            i = end;
+        }
+        return out;
+    }
+
+    private static String joined(List<Content> toks, LogProbsUtils.Range r) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = r.start(); i < r.end(); i++) sb.append(toks.get(i).token());
+        return sb.toString();
+    }
+
+    @Test
+    void alignsValuesByIndexEvenWhenRepeated() {
+        String json = """
+                {"extractions":[
+                  {"name":"Importo","value":"€ 1.000,00","evidence":{"value":"non questo"},"status":"OK","alternatives":[]},
+                  {"name":"Totale","value":"€ 1.000,00","status":"AMBIGUO","alternatives":["€ 1.000,00"]},
+                  {"name":"Data","value":null,"status":"NOT_FOUND"},
+                  {"name":"Nota","value":"a \\"b\\" c","status":"OK"}
+                ]}""";
+        List<Content> toks = tokenize(json);
+
+        List<LogProbsUtils.Range> ranges = LogProbsJsonAligner.valueRanges(toks, "extractions", "value");
+
+        assertEquals(4, ranges.size());
+        assertTrue(joined(toks, ranges.get(0)).contains("€ 1.000,00"));
+        assertTrue(joined(toks, ranges.get(1)).contains("€ 1.000,00"));
+        // stesso testo, posizioni diverse: il secondo elemento non riprende lo span del primo
+        assertTrue(ranges.get(1).start() > ranges.get(0).end());
+        assertNull(ranges.get(2));
+        assertTrue(joined(toks, ranges.get(3)).contains("a \\\"b\\\" c"));
+    }
+
+    @Test
+    void alignsEveryValueOnLongOutputs() {
+        StringBuilder sb = new StringBuilder("{\"extractions\":[");
+        for (int i = 0; i < 2000; i++) {
+            if (i > 0) sb.append(',');
+            sb.append("{\"name\":\"Campo ").append(i).append("\",\"value\":\"Valore ripetuto\",\"status\":\"OK\"}");
+        }
+        sb.append("]}");
+        List<Content> toks = tokenize(sb.toString());
+
+        List<LogProbsUtils.Range> ranges = LogProbsJsonAligner.valueRanges(toks, "extractions", "value");
+
+        assertEquals(2000, ranges.size());
+        for (int i = 1; i < ranges.size(); i++) {
+            assertTrue(ranges.get(i).start() >= ranges.get(i - 1).end());
+        }
+    }
+}
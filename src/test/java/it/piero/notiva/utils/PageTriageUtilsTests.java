@@ -0,0 +1,99 @@
+package it.piero.notiva.utils;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PageTriageUtilsTests {
+
+    private static final int W = 1240;
+    private static final int H = 1754;
+
+    private final PageTriageUtils triage = new PageTriageUtils(true, 0.00002, 0.15, 0.05);
+
+    // pagina A4 a 150 dpi con le righe indicate, spostate di (dx, dy) pixel
+    private static BufferedImage image(int dx, int dy, String... lines) {
+        BufferedImage img = new BufferedImage(W, H, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = img.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, W, H);
+        g.setColor(Color.BLACK);
+        g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 20));
+        for (int i = 0; i < lines.length; i++) {
+            g.drawString(lines[i], 150 + dx, 200 + i * 28 + dy);
+        }
+        g.dispose();
+        return img;
+    }
+
+    // la stessa pagina passata da un JPEG, come dopo una nuova scansione
+    private static BufferedImage jpeg(BufferedImage img) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(img, "jpeg", bytes);
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(bytes.toByteArray()));
+        BufferedImage gray = new BufferedImage(decoded.getWidth(), decoded.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = gray.createGraphics();
+        g.drawImage(decoded, 0, 0, null);
+        g.dispose();
+        return gray;
+    }
+
+    private static PdfUtils.RenderedPage page(int number, BufferedImage img) throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(img, "png", png);
+        return new PdfUtils.RenderedPage(number, png.toByteArray(), PageSignature.of(img));
+    }
+
+    private static PdfUtils.RenderedPage page(int number, String... lines) throws IOException {
+        return page(number, image(0, 0, lines));
+    }
+
+    private static String[] denseLines(String amount) {
+        String[] lines = new String[50];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = "Voce " + i + " del computo metrico estimativo, importo a corpo € 1.234,56";
+        }
+        lines[25] = "Importo totale dei lavori a base d'asta € " + amount;
+        return lines;
+    }
+
+    @Test
+    void shortLineIsNotBlank() throws IOException {
+        PageTriageUtils.Session<String> session = triage.newSession();
+        assertEquals(PageTriageUtils.Kind.BLANK, session.classify(page(1)).kind());
+        assertEquals(PageTriageUtils.Kind.OCR, session.classify(page(2, "Pag. 3")).kind());
+        assertEquals(PageTriageUtils.Kind.OCR, session.classify(page(3, "Firma")).kind());
+    }
+
+    @Test
+    void reusesRescansButNotPagesWithADifferentDigit() throws IOException {
+        PageTriageUtils.Session<String> session = triage.newSession();
+        PdfUtils.RenderedPage first = page(1, denseLines("125.000,00"));
+        assertEquals(PageTriageUtils.Kind.OCR, session.classify(first).kind());
+        session.record(first, "pagina 1");
+
+        // stesso layout e stesso inchiostro totale, una cifra diversa: va letta
+        assertEquals(PageTriageUtils.Kind.OCR, session.classify(page(2, denseLines("126.000,00"))).kind());
+        assertEquals(PageTriageUtils.Kind.OCR, session.classify(page(3, denseLines("125.000,01"))).kind());
+
+        PageTriageUtils.Verdict same = session.classify(page(4, denseLines("125.000,00")));
+        assertEquals(PageTriageUtils.Kind.DUPLICATE, same.kind());
+        assertEquals(1, same.duplicateOf());
+
+        // ricompressa e spostata di qualche pixel: byte diversi, stessa pagina
+        PageTriageUtils.Verdict rescan = session.classify(page(5, jpeg(image(2, 3, denseLines("125.000,00")))));
+        assertEquals(PageTriageUtils.Kind.DUPLICATE, rescan.kind());
+        assertEquals(1, rescan.duplicateOf());
+
+        assertEquals(PageTriageUtils.Kind.OCR, session.classify(page(6, jpeg(image(2, 3, denseLines("126.000,00"))))).kind());
+    }
+}
@@ -0,0 +1,86 @@
+package it.piero.notiva.utils;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.font.Standard14Fonts;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PdfUtilsTests {
+
+    @Test
+    void textOnlyPageHasNoImages() throws IOException {
+        try (PDDocument doc = new PDDocument()) {
+            PDPage page = new PDPage(PDRectangle.A4);
+            doc.addPage(page);
+            try (PDPageContentStream cs = new PDPageContentStream(doc, page)) {
+                cs.beginText();
+                cs.setFont(new PDType1Font(Standard14Fonts.FontName.HELVETICA), 12);
+                cs.newLineAtOffset(72, 700);
+                cs.showText("Importo totale: 1.234,56");
+                cs.endText();
+            }
+            assertFalse(PdfUtils.hasImages(page));
+        }
+    }
+
+    @Test
+    void findsInlineImages() throws IOException {
+        try (PDDocument doc = new PDDocument()) {
+            PDPage page = new PDPage(PDRectangle.A4);
+            doc.addPage(page);
+            PDStream contents = new PDStream(doc);
+            try (OutputStream out = contents.createOutputStream()) {
+                out.write("q 100 0 0 100 72 600 cm BI /W 1 /H 1 /BPC 8 /CS /G ID ".getBytes(StandardCharsets.ISO_8859_1));
+                out.write(0x80);
+                out.write(" EI Q\n".getBytes(StandardCharsets.ISO_8859_1));
+            }
+            page.setContents(contents);
+            assertTrue(PdfUtils.hasImages(page));
+        }
+    }
+
+    // scanner: la pagina disegna un form che a sua volta disegna la scansione
+    @Test
+    void findsImagesNestedInForms() throws IOException {
+        try (PDDocument doc = new PDDocument()) {
+            PDPage page = new PDPage(PDRectangle.A4);
+            doc.addPage(page);
+
+            PDFormXObject form = new PDFormXObject(doc);
+            form.setBBox(PDRectangle.A4);
+            PDResources formResources = new PDResources();
+            formResources.add(LosslessFactory.createFromImage(doc, new BufferedImage(4, 4, BufferedImage.TYPE_BYTE_GRAY)));
+            form.setResources(formResources);
+            try (OutputStream out = form.getStream().createOutputStream()) {
+                out.write("q 595 0 0 842 0 0 cm /Im1 Do Q\n".getBytes(StandardCharsets.ISO_8859_1));
+            }
+
+            PDResources resources = new PDResources();
+            COSName formName = resources.add(form);
+            page.setResources(resources);
+            PDStream contents = new PDStream(doc);
+            try (OutputStream out = contents.createOutputStream()) {
+                out.write(("/" + formName.getName() + " Do\n").getBytes(StandardCharsets.ISO_8859_1));
+            }
+            page.setContents(contents);
+
+            assertTrue(PdfUtils.hasImages(page));
+        }
+    }
+}
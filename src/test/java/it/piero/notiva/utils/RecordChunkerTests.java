@@ -0,0 +1,68 @@
+package it.piero.notiva.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.piero.notiva.model.DocUnit;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RecordChunkerTests {
+
+    private final RecordChunker chunker = new RecordChunker(new ObjectMapper(), true);
+
+    private static DocUnit line(int page, int i) {
+        return DocUnit.textUnit("LINE", page, null,
+                "Riga " + i + " del capitolato speciale d'appalto con importi e scadenze da verificare",
+                "u" + page + "-" + i, 0.9f, null, "doc.pdf");
+    }
+
+    private static List<DocUnit> page(int page, int lines) {
+        List<DocUnit> out = new ArrayList<>();
+        for (int i = 0; i < lines; i++) out.add(line(page, i));
+        return out;
+    }
+
+    @Test
+    void keepsPagesWholeUnderTheBudget() {
+        List<DocUnit> records = new ArrayList<>(page(1, 5));
+        records.addAll(page(2, 5));
+        records.addAll(page(3, 5));
+        int budget = chunker.estimateTokens(page(1, 5)) * 2 + 10;
+
+        List<List<DocUnit>> chunks = chunker.chunk(records, budget);
+
+        assertEquals(2, chunks.size());
+        assertEquals(10, chunks.get(0).size());
+        assertEquals(3, chunks.get(1).get(0).getPage());
+    }
+
+    @Test
+    void splitsAnOversizedPageByRecord() {
+        List<DocUnit> records = new ArrayList<>(page(1, 2));
+        records.addAll(page(2, 40));
+        records.addAll(page(3, 2));
+        int budget = chunker.estimateTokens(page(2, 10));
+
+        List<List<DocUnit>> chunks = chunker.chunk(records, budget);
+
+        // la pagina 1 esce da sola prima della pagina grande, la 3 ricomincia un blocco nuovo
+        assertTrue(chunks.size() >= 6);
+        assertEquals(List.of(1), pages(chunks.get(0)));
+        assertEquals(List.of(3), pages(chunks.get(chunks.size() - 1)));
+        List<DocUnit> flat = new ArrayList<>();
+        for (List<DocUnit> c : chunks) {
+            assertTrue(chunker.estimateTokens(c) <= budget);
+            flat.addAll(c);
+        }
+        // nessun record perso o riordinato
+        assertEquals(records, flat);
+    }
+
+    private static List<Integer> pages(List<DocUnit> chunk) {
+        return chunk.stream().map(DocUnit::getPage).distinct().toList();
+    }
+}
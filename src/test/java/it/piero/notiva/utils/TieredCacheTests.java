@@ -0,0 +1,157 @@
+package it.piero.notiva.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TieredCacheTests {
+
+    private static final TieredCache.Codec<String> UTF8 = new TieredCache.Codec<>() {
+        @Override
+        public byte[] encode(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(byte[] bytes) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    @TempDir
+    Path dir;
+
+    private static String value(int n) {
+        return String.format("valore-%03d", n); // 10 byte
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedFromMemory() {
+        TieredCache<String> cache = new TieredCache<>("test", 2, null, 0, UTF8);
+        cache.put("a1", value(1));
+        cache.put("a2", value(2));
+        assertEquals(value(1), cache.get("a1"));
+        cache.put("a3", value(3));
+
+        assertNull(cache.get("a2"));
+        assertEquals(value(1), cache.get("a1"));
+        assertEquals(value(3), cache.get("a3"));
+
+        TieredCache.Stats stats = cache.stats();
+        assertEquals(3, stats.memoryHits());
+        assertEquals(1, stats.misses());
+        assertEquals(3, stats.puts());
+        assertEquals(1, stats.memoryEvictions());
+        assertEquals(2, stats.memoryEntries());
+    }
+
+    @Test
+    void keepsDiskWithinItsByteBound() {
+        TieredCache<String> cache = new TieredCache<>("test", 1, dir, 25, UTF8);
+        cache.put("a1", value(1));
+        cache.put("a2", value(2));
+        // a1 torna dal disco e diventa la voce usata più di recente: al posto suo esce a2
+        assertEquals(value(1), cache.get("a1"));
+        cache.put("a3", value(3));
+
+        assertTrue(Files.exists(dir.resolve("a1.bin")));
+        assertFalse(Files.exists(dir.resolve("a2.bin")));
+        assertTrue(Files.exists(dir.resolve("a3.bin")));
+
+        TieredCache.Stats stats = cache.stats();
+        assertEquals(1, stats.diskHits());
+        assertEquals(1, stats.diskEvictions());
+        assertEquals(2, stats.diskEntries());
+        assertEquals(20, stats.diskBytes());
+    }
+
+    @Test
+    void skipsValuesLargerThanTheDisk() {
+        TieredCache<String> cache = new TieredCache<>("test", 4, dir, 5, UTF8);
+        cache.put("a1", value(1));
+
+        assertEquals(value(1), cache.get("a1"));
+        assertFalse(Files.exists(dir.resolve("a1.bin")));
+        assertEquals(0, cache.stats().diskEntries());
+    }
+
+    @Test
+    void reloadsDiskAfterRestart() throws IOException {
+        TieredCache<String> before = new TieredCache<>("test", 4, dir, 1_000, UTF8);
+        before.put("a1", value(1));
+        before.put("a2", value(2));
+        before.put("a3", value(3));
+        // ordine LRU al riavvio dall'ultima modifica: a2 è la più vecchia
+        Files.setLastModifiedTime(dir.resolve("a2.bin"), FileTime.fromMillis(1_000));
+        Files.setLastModifiedTime(dir.resolve("a1.bin"), FileTime.fromMillis(2_000));
+        Files.setLastModifiedTime(dir.resolve("a3.bin"), FileTime.fromMillis(3_000));
+
+        TieredCache<String> after = new TieredCache<>("test", 4, dir, 20, UTF8);
+
+        TieredCache.Stats loaded = after.stats();
+        assertEquals(2, loaded.diskEntries());
+        assertEquals(20, loaded.diskBytes());
+        assertEquals(1, loaded.diskEvictions());
+        assertEquals(0, loaded.memoryEntries());
+
+        assertNull(after.get("a2"));
+        assertEquals(value(1), after.get("a1"));
+        assertEquals(value(3), after.get("a3"));
+        assertEquals(value(1), after.get("a1"));
+
+        TieredCache.Stats stats = after.stats();
+        assertEquals(2, stats.diskHits());
+        assertEquals(1, stats.memoryHits());
+        assertEquals(1, stats.misses());
+    }
+
+    @Test
+    void expiresEntriesOnBothTiers() throws InterruptedException {
+        TieredCache<String> cache = new TieredCache<>("test", 4, dir, 1_000, Duration.ofMillis(100), UTF8);
+        cache.put("a1", value(1));
+        assertEquals(value(1), cache.get("a1"));
+
+        Thread.sleep(150);
+        assertNull(cache.get("a1"));
+        assertFalse(Files.exists(dir.resolve("a1.bin")));
+
+        // una scaduta in memoria e una sul disco
+        TieredCache.Stats stats = cache.stats();
+        assertEquals(2, stats.expirations());
+        assertEquals(1, stats.misses());
+        assertEquals(0, stats.diskEntries());
+    }
+
+    @Test
+    void discardsUnreadableEntries() throws IOException {
+        TieredCache.Codec<String> failing = new TieredCache.Codec<>() {
+            @Override
+            public byte[] encode(String value) {
+                return value.getBytes(StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public String decode(byte[] bytes) throws IOException {
+                throw new IOException("voce troncata");
+            }
+        };
+        Files.write(dir.resolve("a1.bin"), new byte[]{1, 2, 3});
+        TieredCache<String> cache = new TieredCache<>("test", 4, dir, 1_000, failing);
+
+        assertNull(cache.get("a1"));
+        assertFalse(Files.exists(dir.resolve("a1.bin")));
+        assertEquals(0, cache.stats().diskEntries());
+        assertEquals(0, cache.stats().diskBytes());
+    }
+}